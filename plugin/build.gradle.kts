@@ -20,6 +20,7 @@ repositories {
 
 dependencies {
     gradleApi()
+    implementation("org.apache.commons:commons-compress:1.23.0")
     testImplementation("org.spockframework:spock-core:2.3-groovy-3.0")
     testImplementation(gradleTestKit())
 }
@@ -56,6 +57,19 @@ tasks {
             events = setOf(org.gradle.api.tasks.testing.logging.TestLogEvent.PASSED, org.gradle.api.tasks.testing.logging.TestLogEvent.SKIPPED, org.gradle.api.tasks.testing.logging.TestLogEvent.FAILED)
         }
     }
+
+    val configurationCacheTest by registering(Test::class) {
+        description = "Runs the functional tests with the configuration cache enabled."
+        group = LifecycleBasePlugin.VERIFICATION_GROUP
+        testClassesDirs = sourceSets.test.get().output.classesDirs
+        classpath = sourceSets.test.get().runtimeClasspath
+        systemProperty("config.cache", "true")
+        shouldRunAfter(test)
+    }
+
+    check {
+        dependsOn(configurationCacheTest)
+    }
 }
 
 publishing {
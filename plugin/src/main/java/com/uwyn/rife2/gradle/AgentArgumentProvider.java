@@ -0,0 +1,52 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.process.CommandLineArgumentProvider;
+
+import java.util.List;
+
+/**
+ * Adds the {@code -javaagent} argument for the RIFE2 agent to a JVM, when
+ * the agent classpath isn't empty.
+ */
+public class AgentArgumentProvider implements CommandLineArgumentProvider {
+    private final FileCollection agentClasspath_;
+
+    AgentArgumentProvider(FileCollection agentClasspath) {
+        agentClasspath_ = agentClasspath;
+    }
+
+    /**
+     * The classpath of the agent, which is empty when the agent isn't used.
+     *
+     * @return the agent classpath
+     */
+    @Classpath
+    public FileCollection getAgentClasspath() {
+        return agentClasspath_;
+    }
+
+    @Override
+    public Iterable<String> asArguments() {
+        if (agentClasspath_.isEmpty()) {
+            return List.of();
+        }
+        return List.of("-javaagent:" + agentClasspath_.getAsPath());
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Nested;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.work.DisableCachingByDefault;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+
+/**
+ * Gradle task to create an AppCDS archive for the uber jar of a RIFE2 web
+ * application.
+ * <p>
+ * The uber jar is copied to the output directory and launched from there
+ * with {@code -XX:ArchiveClassesAtExit}, while the training URLs are
+ * requested. When the application stops, the JVM writes the classes that
+ * were loaded to a Class Data Sharing archive next to the jar. A launcher
+ * script that starts the jar with this archive is written as well.
+ * <p>
+ * Classes that are loaded by custom class loaders aren't archived, so the
+ * {@link UberJarFormat#FLAT flat} uber jar format benefits the most.
+ */
+@DisableCachingByDefault(because = "The archive depends on the classes that the training run happens to load")
+public abstract class CdsArchive extends DefaultTask {
+    /**
+     * The uber jar to create the archive for.
+     *
+     * @return the uber jar
+     */
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getJarFile();
+
+    /**
+     * The Java launcher that runs the training and that the archive is
+     * created for, since an archive only works with the JVM that created it.
+     *
+     * @return the Java launcher
+     */
+    @Nested
+    public abstract Property<JavaLauncher> getJavaLauncher();
+
+    /**
+     * Additional JVM arguments of the training run, which should match
+     * the JVM arguments of the application in production.
+     *
+     * @return the JVM arguments
+     */
+    @Input
+    public abstract ListProperty<String> getJvmArgs();
+
+    /**
+     * The URLs that are requested once the application has started, for
+     * instance {@code http://localhost:8080/}.
+     *
+     * @return the training URLs
+     */
+    @Input
+    public abstract ListProperty<String> getTrainingUrls();
+
+    /**
+     * The maximum duration of the training run. When there are no training
+     * URLs, the application runs for this whole duration, unless it exits by
+     * itself. Defaults to 10 seconds.
+     *
+     * @return the training duration
+     */
+    @Input
+    public abstract Property<Duration> getTrainingDuration();
+
+    /**
+     * The directory that receives the copy of the uber jar, its CDS archive
+     * and the launcher script.
+     *
+     * @return the output directory
+     */
+    @OutputDirectory
+    public abstract DirectoryProperty getOutputDirectory();
+
+    @Inject
+    protected abstract FileSystemOperations getFileSystemOperations();
+
+    /**
+     * Runs the training and creates the archive.
+     *
+     * @throws IOException when the launcher script couldn't be written
+     */
+    @TaskAction
+    public void createArchive() throws IOException {
+        var output = getOutputDirectory().get().getAsFile();
+        var source = getJarFile().get().getAsFile();
+        getFileSystemOperations().delete(spec -> spec.delete(output));
+        output.mkdirs();
+        // the archive only matches the jar at the location and with the timestamp it was created with
+        var jar = new File(output, source.getName());
+        Files.copy(source.toPath(), jar.toPath());
+        var name = source.getName().replaceFirst("\\.jar$", "");
+        var archive = new File(output, name + ".jsa");
+
+        var command = new ArrayList<String>();
+        command.add(getJavaLauncher().get().getExecutablePath().getAsFile().getAbsolutePath());
+        command.add("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+        command.addAll(getJvmArgs().get());
+        command.add("-jar");
+        command.add(jar.getAbsolutePath());
+        var log = new File(getTemporaryDir(), "training.log");
+        TrainingRun.run(getLogger(), command, output, log, getTrainingUrls().get(), getTrainingDuration().get());
+        if (!archive.isFile()) {
+            throw new GradleException("The training run didn't create the CDS archive " + archive + ", see " + log);
+        }
+
+        var script = new File(output, name + ".sh");
+        Files.writeString(script.toPath(), "#!/bin/sh\n" +
+            "DIR=$(cd \"$(dirname \"$0\")\" && pwd)\n" +
+            "JAVA=java\n" +
+            "if [ -n \"$JAVA_HOME\" ]; then JAVA=\"$JAVA_HOME/bin/java\"; fi\n" +
+            "exec \"$JAVA\" -XX:SharedArchiveFile=\"$DIR/" + archive.getName() + "\" -Xshare:auto $JAVA_OPTS -jar \"$DIR/" + jar.getName() + "\" \"$@\"\n");
+        script.setExecutable(true);
+    }
+}
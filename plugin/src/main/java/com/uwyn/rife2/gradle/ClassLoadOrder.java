@@ -0,0 +1,150 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputDirectory;
+import org.gradle.api.tasks.Nested;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.work.DisableCachingByDefault;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Gradle task to record the order in which a RIFE2 web application loads
+ * its classes at startup.
+ * <p>
+ * The application is launched from its thin distribution with class loading
+ * logging, while the training URLs are requested. The resulting file lists
+ * the jar entry names of the loaded classes, one per line, in loading order.
+ * Classes of the Java runtime aren't included. {@link UberJar} can use this
+ * file to write the entries in the order they're read at startup.
+ */
+@DisableCachingByDefault(because = "The order depends on what the training run happens to load")
+public abstract class ClassLoadOrder extends DefaultTask {
+    private static final String SOURCE_MARKER = " source: ";
+
+    /**
+     * The thin distribution of the web application.
+     *
+     * @return the distribution directory
+     */
+    @InputDirectory
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract DirectoryProperty getDistributionDirectory();
+
+    /**
+     * The name of the application jar in the distribution directory.
+     *
+     * @return the application jar name
+     */
+    @Input
+    public abstract Property<String> getJarName();
+
+    /**
+     * The Java launcher that runs the training.
+     *
+     * @return the Java launcher
+     */
+    @Nested
+    public abstract Property<JavaLauncher> getJavaLauncher();
+
+    /**
+     * Additional JVM arguments of the training run.
+     *
+     * @return the JVM arguments
+     */
+    @Input
+    public abstract ListProperty<String> getJvmArgs();
+
+    /**
+     * The URLs that are requested once the application has started.
+     *
+     * @return the training URLs
+     */
+    @Input
+    public abstract ListProperty<String> getTrainingUrls();
+
+    /**
+     * The maximum duration of the training run. Defaults to 10 seconds.
+     *
+     * @return the training duration
+     */
+    @Input
+    public abstract Property<Duration> getTrainingDuration();
+
+    /**
+     * The file with the jar entry names of the loaded classes, in loading order.
+     *
+     * @return the class load order file
+     */
+    @OutputFile
+    public abstract RegularFileProperty getOrderFile();
+
+    /**
+     * Runs the training and writes the class load order.
+     *
+     * @throws IOException when the class loading log couldn't be read
+     */
+    @TaskAction
+    public void record() throws IOException {
+        var distribution = getDistributionDirectory().get().getAsFile();
+        var log = new File(getTemporaryDir(), "class-load.log");
+        Files.deleteIfExists(log.toPath());
+
+        var command = new ArrayList<String>();
+        command.add(getJavaLauncher().get().getExecutablePath().getAsFile().getAbsolutePath());
+        command.add("-Xlog:class+load=info:file=" + log.getAbsolutePath() + ":none");
+        command.addAll(getJvmArgs().get());
+        command.add("-jar");
+        command.add(new File(distribution, getJarName().get()).getAbsolutePath());
+        TrainingRun.run(getLogger(), command, distribution, new File(getTemporaryDir(), "training.log"),
+            getTrainingUrls().get(), getTrainingDuration().get());
+        if (!log.isFile()) {
+            throw new GradleException("The training run didn't log the loaded classes");
+        }
+
+        var entries = new LinkedHashSet<String>();
+        for (var line : Files.readAllLines(log.toPath())) {
+            var marker = line.indexOf(SOURCE_MARKER);
+            if (marker == -1) {
+                continue;
+            }
+            var source = line.substring(marker + SOURCE_MARKER.length());
+            var name = line.substring(0, marker).trim();
+            // only classes from the application classpath, hidden classes have no entry
+            if ((source.startsWith("file:") || source.startsWith("jar:")) && !name.contains("/")) {
+                entries.add(name.replace('.', '/') + ".class");
+            }
+        }
+        Files.write(getOrderFile().get().getAsFile().toPath(), entries);
+    }
+}
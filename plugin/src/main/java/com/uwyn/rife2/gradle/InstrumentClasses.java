@@ -0,0 +1,103 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.IgnoreEmptyDirectories;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.workers.WorkerExecutor;
+
+import javax.inject.Inject;
+
+/**
+ * Gradle task to apply the class transformations of the RIFE2 agent at
+ * build time, so that the web application can run without the agent.
+ * <p>
+ * Only the classes that are changed by the agent are written to the
+ * output directory, the archives use these instead of the original classes.
+ */
+@CacheableTask
+public abstract class InstrumentClasses extends DefaultTask {
+    /**
+     * The classpath of the agent, the {@code Premain-Class} of the first jar
+     * that declares one is used.
+     *
+     * @return the agent classpath
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getAgentClasspath();
+
+    /**
+     * The directories with the compiled classes to instrument.
+     *
+     * @return the class directories
+     */
+    @InputFiles
+    @IgnoreEmptyDirectories
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract ConfigurableFileCollection getClassesDirectories();
+
+    /**
+     * The classpath that the instrumented classes are loaded with when the
+     * agent needs to inspect them.
+     *
+     * @return the runtime classpath
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getClasspath();
+
+    /**
+     * The directory to write the instrumented classes to.
+     *
+     * @return the output directory
+     */
+    @OutputDirectory
+    public abstract DirectoryProperty getOutputDirectory();
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
+    @Inject
+    protected abstract FileSystemOperations getFileSystemOperations();
+
+    /**
+     * Instruments the classes.
+     */
+    @TaskAction
+    public void instrument() {
+        var output = getOutputDirectory().get().getAsFile();
+        getFileSystemOperations().delete(spec -> spec.delete(output));
+        output.mkdirs();
+
+        // the agent classes are isolated from the build, just like they are when running with -javaagent
+        var queue = getWorkerExecutor().classLoaderIsolation(spec -> spec.getClasspath().from(getAgentClasspath()));
+        queue.submit(InstrumentWorkAction.class, parameters -> {
+            parameters.getAgentClasspath().from(getAgentClasspath());
+            parameters.getClassesDirectories().from(getClassesDirectories());
+            parameters.getClasspath().from(getClasspath());
+            parameters.getOutputDirectory().set(getOutputDirectory());
+        });
+    }
+}
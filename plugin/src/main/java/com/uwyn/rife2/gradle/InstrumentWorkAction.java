@@ -0,0 +1,205 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.logging.Logging;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarFile;
+
+/**
+ * Worker action that runs the premain method of the RIFE2 agent with an
+ * {@link Instrumentation} that only collects the class file transformers,
+ * and applies these transformers to the compiled classes.
+ */
+public abstract class InstrumentWorkAction implements WorkAction<InstrumentWorkAction.Parameters> {
+    static final String PREMAIN_CLASS_ATTRIBUTE = "Premain-Class";
+
+    /**
+     * The parameters of the instrumentation.
+     */
+    public interface Parameters extends WorkParameters {
+        ConfigurableFileCollection getAgentClasspath();
+
+        ConfigurableFileCollection getClassesDirectories();
+
+        ConfigurableFileCollection getClasspath();
+
+        DirectoryProperty getOutputDirectory();
+    }
+
+    @Override
+    public void execute() {
+        var parameters = getParameters();
+        var transformers = new ArrayList<ClassFileTransformer>();
+        premain(premainClass(parameters.getAgentClasspath().getFiles()), instrumentation(transformers));
+
+        var output = parameters.getOutputDirectory().get().getAsFile().toPath();
+        try (var loader = new URLClassLoader(urls(parameters), ClassLoader.getPlatformClassLoader())) {
+            var instrumented = 0;
+            for (var directory : parameters.getClassesDirectories()) {
+                if (!directory.isDirectory()) {
+                    continue;
+                }
+                var root = directory.toPath();
+                List<Path> classes;
+                try (var files = Files.walk(root)) {
+                    classes = files.filter(file -> file.toString().endsWith(".class")).sorted().toList();
+                }
+                for (var file : classes) {
+                    var path = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    var original = Files.readAllBytes(file);
+                    var bytes = transform(transformers, loader, path.substring(0, path.length() - ".class".length()), original);
+                    if (!Arrays.equals(bytes, original)) {
+                        var target = output.resolve(path);
+                        Files.createDirectories(target.getParent());
+                        Files.write(target, bytes);
+                        instrumented++;
+                    }
+                }
+            }
+            Logging.getLogger(InstrumentWorkAction.class).info("Instrumented {} classes", instrumented);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] transform(List<ClassFileTransformer> transformers, ClassLoader loader, String className, byte[] bytes) {
+        var result = bytes;
+        for (var transformer : transformers) {
+            try {
+                var transformed = transformer.transform(loader, className, null, null, result);
+                if (transformed != null) {
+                    result = transformed;
+                }
+            } catch (IllegalClassFormatException e) {
+                throw new GradleException("Unable to instrument " + className, e);
+            }
+        }
+        return result;
+    }
+
+    private static String premainClass(Iterable<File> agentClasspath) {
+        for (var file : agentClasspath) {
+            if (!file.isFile()) {
+                continue;
+            }
+            try (var jar = new JarFile(file)) {
+                var manifest = jar.getManifest();
+                var premainClass = manifest == null ? null : manifest.getMainAttributes().getValue(PREMAIN_CLASS_ATTRIBUTE);
+                if (premainClass != null) {
+                    return premainClass.trim();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        throw new GradleException("Unable to find a " + PREMAIN_CLASS_ATTRIBUTE + " in the RIFE2 agent classpath");
+    }
+
+    private void premain(String premainClass, Instrumentation instrumentation) {
+        try {
+            var agent = Class.forName(premainClass, true, getClass().getClassLoader());
+            Method premain;
+            try {
+                premain = agent.getMethod("premain", String.class, Instrumentation.class);
+            } catch (NoSuchMethodException e) {
+                throw new GradleException("The RIFE2 agent " + premainClass + " doesn't use the instrumentation", e);
+            }
+            premain.invoke(null, null, instrumentation);
+        } catch (InvocationTargetException e) {
+            throw new GradleException("Unable to initialize the RIFE2 agent", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new GradleException("Unable to find the RIFE2 agent " + premainClass, e);
+        }
+    }
+
+    // only transformers can be registered, since there are no classes loaded that could be redefined
+    private static Instrumentation instrumentation(List<ClassFileTransformer> transformers) {
+        return (Instrumentation) Proxy.newProxyInstance(Instrumentation.class.getClassLoader(), new Class<?>[]{Instrumentation.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "addTransformer" -> {
+                    transformers.add((ClassFileTransformer) args[0]);
+                    return null;
+                }
+                case "removeTransformer" -> {
+                    return transformers.remove((ClassFileTransformer) args[0]);
+                }
+                case "getAllLoadedClasses", "getInitiatedClasses" -> {
+                    return new Class<?>[0];
+                }
+                case "hashCode" -> {
+                    return System.identityHashCode(proxy);
+                }
+                case "equals" -> {
+                    return proxy == args[0];
+                }
+                case "toString" -> {
+                    return "build time instrumentation";
+                }
+                default -> {
+                    var type = method.getReturnType();
+                    if (type == boolean.class) {
+                        return false;
+                    }
+                    if (type == long.class) {
+                        return 0L;
+                    }
+                    if (type == void.class) {
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName() + " isn't supported at build time");
+                }
+            }
+        });
+    }
+
+    private static URL[] urls(Parameters parameters) {
+        var urls = new ArrayList<URL>();
+        try {
+            for (var file : parameters.getClassesDirectories()) {
+                urls.add(file.toURI().toURL());
+            }
+            for (var file : parameters.getClasspath()) {
+                urls.add(file.toURI().toURL());
+            }
+        } catch (MalformedURLException e) {
+            throw new GradleException("Invalid classpath entry", e);
+        }
+        return urls.toArray(new URL[0]);
+    }
+}
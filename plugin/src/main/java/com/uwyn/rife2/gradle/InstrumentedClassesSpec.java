@@ -0,0 +1,47 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.file.Directory;
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.specs.Spec;
+
+import java.io.File;
+
+/**
+ * Matches the original classes that were replaced by an instrumented
+ * version, so that they can be excluded from an archive.
+ */
+class InstrumentedClassesSpec implements Spec<FileTreeElement> {
+    private final Provider<Boolean> enabled_;
+    private final Provider<Directory> directory_;
+
+    InstrumentedClassesSpec(Provider<Boolean> enabled, Provider<Directory> directory) {
+        enabled_ = enabled;
+        directory_ = directory;
+    }
+
+    @Override
+    public boolean isSatisfiedBy(FileTreeElement element) {
+        if (element.isDirectory() || !enabled_.get()) {
+            return false;
+        }
+        var directory = directory_.get().getAsFile();
+        return !element.getFile().toPath().startsWith(directory.toPath())
+            && new File(directory, element.getRelativePath().getPathString()).isFile();
+    }
+}
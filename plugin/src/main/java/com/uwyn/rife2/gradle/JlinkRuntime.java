@@ -0,0 +1,194 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Nested;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.process.ExecOperations;
+
+import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+
+/**
+ * Gradle task to create a minimal Java runtime image for a RIFE2 web
+ * application.
+ * <p>
+ * {@code jdeps} determines the JDK modules that the application classes
+ * and their dependencies require, and {@code jlink} creates a runtime
+ * image with only these modules, without debug information, header files
+ * and man pages. Both tools are taken from the JDK of the
+ * {@link #getJavaLauncher() Java launcher}.
+ * <p>
+ * The modules are determined from the {@link #getClasspath() classpath}, which
+ * the RIFE2 plugin sets to the class directories and the runtime classpath jars
+ * of the application, not from the uber jar. Classes that only end up in the
+ * uber jar otherwise aren't analyzed.
+ * <p>
+ * The runtime image can only contain the default CDS archive of the JDK
+ * classes, see {@link #getGenerateCdsArchive()}. The application archive of the
+ * {@code rife2Cds} task isn't included, since it's tied to the JVM and the
+ * uber jar it was created with.
+ */
+@CacheableTask
+public abstract class JlinkRuntime extends DefaultTask {
+    /**
+     * The jars and class directories to determine the required modules for.
+     *
+     * @return the classpath of the application
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getClasspath();
+
+    /**
+     * The Java launcher of the JDK that provides {@code jdeps}, {@code jlink}
+     * and the modules of the runtime image.
+     *
+     * @return the Java launcher
+     */
+    @Nested
+    public abstract Property<JavaLauncher> getJavaLauncher();
+
+    /**
+     * Modules to add to the runtime image, besides the detected ones. This is
+     * needed for modules that are only used through services or reflection,
+     * like {@code jdk.crypto.ec} or {@code jdk.localedata}.
+     *
+     * @return the additional modules
+     */
+    @Input
+    public abstract ListProperty<String> getAdditionalModules();
+
+    /**
+     * Specifies whether the default CDS archive of the JDK classes should be
+     * generated in the runtime image, which speeds up the startup of every
+     * application that runs with it. Defaults to {@code false}.
+     * <p>
+     * This only archives the classes of the JDK modules in the image, the
+     * application classes aren't part of it.
+     *
+     * @return {@code true} when a CDS archive is generated;
+     * {@code false} otherwise
+     */
+    @Input
+    public abstract Property<Boolean> getGenerateCdsArchive();
+
+    /**
+     * Additional arguments of {@code jlink}.
+     *
+     * @return the jlink arguments
+     */
+    @Input
+    public abstract ListProperty<String> getJlinkArgs();
+
+    /**
+     * The directory of the runtime image.
+     *
+     * @return the output directory
+     */
+    @OutputDirectory
+    public abstract DirectoryProperty getOutputDirectory();
+
+    @Inject
+    protected abstract ExecOperations getExecOperations();
+
+    @Inject
+    protected abstract FileSystemOperations getFileSystemOperations();
+
+    /**
+     * Creates the runtime image.
+     */
+    @TaskAction
+    public void createRuntime() {
+        var modules = new TreeSet<>(requiredModules());
+        modules.addAll(getAdditionalModules().get());
+        getLogger().info("Modules of the runtime image: {}", modules);
+
+        var output = getOutputDirectory().get().getAsFile();
+        // jlink refuses to write to an existing directory
+        getFileSystemOperations().delete(spec -> spec.delete(output));
+        getExecOperations().exec(spec -> {
+            spec.executable(tool("jlink"));
+            spec.args("--add-modules", String.join(",", modules));
+            spec.args("--strip-debug", "--no-header-files", "--no-man-pages");
+            spec.args(getJlinkArgs().get());
+            spec.args("--output", output.getAbsolutePath());
+        });
+        if (getGenerateCdsArchive().get()) {
+            // this is what the generate-cds-archive plugin of jlink does, but that one is only available as of JDK 19
+            getExecOperations().exec(spec -> {
+                spec.executable(executable(new File(output, "bin"), "java").getAbsolutePath());
+                spec.args("-Xshare:dump");
+            });
+        }
+    }
+
+    private List<String> requiredModules() {
+        var targets = new ArrayList<String>();
+        for (var file : getClasspath()) {
+            if (file.isDirectory() || (file.isFile() && file.getName().toLowerCase(Locale.ENGLISH).endsWith(".jar"))) {
+                targets.add(file.getAbsolutePath());
+            }
+        }
+        if (targets.isEmpty()) {
+            return List.of("java.base");
+        }
+
+        var out = new ByteArrayOutputStream();
+        getExecOperations().exec(spec -> {
+            spec.executable(tool("jdeps"));
+            spec.args("--print-module-deps", "--ignore-missing-deps");
+            spec.args("--multi-release", String.valueOf(getJavaLauncher().get().getMetadata().getLanguageVersion().asInt()));
+            spec.args("--class-path", String.join(File.pathSeparator, targets));
+            spec.args(targets);
+            spec.setStandardOutput(out);
+        });
+        var lines = out.toString(StandardCharsets.UTF_8).trim().split("\\R");
+        var modules = lines[lines.length - 1].trim();
+        if (modules.isEmpty() || modules.contains(" ")) {
+            throw new GradleException("Unexpected jdeps output: " + out.toString(StandardCharsets.UTF_8));
+        }
+        return Arrays.stream(modules.split(",")).map(String::trim).toList();
+    }
+
+    private String tool(String name) {
+        var bin = getJavaLauncher().get().getMetadata().getInstallationPath().dir("bin").getAsFile();
+        return executable(bin, name).getAbsolutePath();
+    }
+
+    private static File executable(File bin, String name) {
+        var windows = System.getProperty("os.name").toLowerCase(Locale.ENGLISH).contains("windows");
+        return new File(bin, windows ? name + ".exe" : name);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.Action;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.FileCopyDetails;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Gives the dependency jars unique file names when they're copied into a
+ * single lib directory, since different artifacts can have the same file
+ * name. A jar with a name that's already taken gets a numeric prefix, like
+ * {@code 2-core-1.0.jar}.
+ */
+final class LibraryNames {
+    private LibraryNames() {
+    }
+
+    /**
+     * Determines the unique names of the jars on a classpath, the other
+     * classpath entries are skipped.
+     *
+     * @param classpath the classpath, in order
+     * @return the unique file names by jar, in classpath order
+     */
+    static Map<File, String> of(Iterable<File> classpath) {
+        var names = new LinkedHashMap<File, String>();
+        var taken = new HashSet<String>();
+        for (var file : classpath) {
+            if (names.containsKey(file) || !isJar(file)) {
+                continue;
+            }
+            var name = file.getName();
+            for (var i = 2; !taken.add(name); i++) {
+                name = i + "-" + file.getName();
+            }
+            names.put(file, name);
+        }
+        return names;
+    }
+
+    static boolean isJar(File file) {
+        return file.isFile() && file.getName().toLowerCase(Locale.ENGLISH).endsWith(".jar");
+    }
+
+    /**
+     * Renames the copied jars of a classpath to their unique names.
+     */
+    static final class Rename implements Action<FileCopyDetails> {
+        private final FileCollection classpath_;
+        private transient Map<File, String> names_;
+
+        Rename(FileCollection classpath) {
+            classpath_ = classpath;
+        }
+
+        @Override
+        public void execute(FileCopyDetails details) {
+            if (names_ == null) {
+                names_ = of(classpath_);
+            }
+            var name = names_.get(details.getFile());
+            if (name != null) {
+                details.setName(name);
+            }
+        }
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.gradle.api.Action;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.SetProperty;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.IgnoreEmptyDirectories;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.util.PatternFilterable;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Gradle task to write an OCI image archive of a RIFE2 web application,
+ * without requiring a container daemon.
+ * <p>
+ * The application is split into layers that are ordered by how often they
+ * change: the third-party dependencies, the RIFE2 framework, the web
+ * application files, the pre-compiled templates and finally the application
+ * classes. Since the layers are written deterministically, a change to the
+ * templates or the classes only produces new digests for those layers, and
+ * the others don't need to be pushed or pulled again.
+ * <p>
+ * The archive uses the OCI image layout and also contains a
+ * {@code manifest.json}, so that it can be loaded with {@code docker load}.
+ * <p>
+ * The image doesn't contain a Java runtime by itself: the layers of a base
+ * image that provides one need to be added to {@link #getBaseLayers()}.
+ * Without base layers, the task fails unless {@link #getJavaCommand()} is
+ * changed from its default, for instance to a runtime that is mounted into
+ * the container.
+ */
+@CacheableTask
+public abstract class OciImage extends DefaultTask {
+    static final String APP_DIRECTORY = "app/";
+    static final String DEFAULT_JAVA_COMMAND = "java";
+    private static final String LAYER_MEDIA_TYPE = "application/vnd.oci.image.layer.v1.tar+gzip";
+    private static final String CONFIG_MEDIA_TYPE = "application/vnd.oci.image.config.v1+json";
+    private static final String MANIFEST_MEDIA_TYPE = "application/vnd.oci.image.manifest.v1+json";
+
+    /**
+     * Gzip-compressed layer tarballs of the base image, which needs to provide
+     * the Java runtime. They're added in order, below the application layers,
+     * and are required as long as {@link #getJavaCommand()} is the default.
+     *
+     * @return the base image layers
+     */
+    @InputFiles
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract ConfigurableFileCollection getBaseLayers();
+
+    /**
+     * The third-party dependency jars, which are stored in {@code /app/lib}.
+     *
+     * @return the dependency jars
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getDependencies();
+
+    /**
+     * The RIFE2 framework jars, which are stored in {@code /app/lib}.
+     *
+     * @return the framework jars
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getFrameworkClasspath();
+
+    /**
+     * The directory with the web application files, which are stored in
+     * {@code /app/webapp}.
+     *
+     * @return the web application directory
+     */
+    @InputFiles
+    @Optional
+    @IgnoreEmptyDirectories
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract DirectoryProperty getWebappDirectory();
+
+    /**
+     * The pre-compiled template classes, which are stored in {@code /app/classes}.
+     *
+     * @return the template class directories
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getTemplateClasses();
+
+    /**
+     * The class directories and resources of the web application, which
+     * are stored in {@code /app/classes}.
+     *
+     * @return the application class directories
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getApplicationClasses();
+
+    /**
+     * Patterns of application class directory files that shouldn't be
+     * included in the image.
+     *
+     * @return the exclude patterns
+     */
+    @Input
+    public abstract SetProperty<String> getExcludes();
+
+    /**
+     * Patterns of the files of detected template types, that are only left
+     * out when they contain RIFE2 template markup.
+     *
+     * @return the exclude patterns of the detected template types
+     */
+    @Input
+    public abstract SetProperty<String> getDetectedTemplateExcludes();
+
+    /**
+     * The main class that the image launches. The RIFE2 plugin sets it to
+     * {@link Rife2Extension#getUberMainClass()}, the task fails when neither
+     * has a value.
+     *
+     * @return the fully qualified name of the main class
+     */
+    @Input
+    @Optional
+    public abstract Property<String> getMainClass();
+
+    /**
+     * The Java command of the image entrypoint. Defaults to {@code java},
+     * which needs to be on the path of the base image.
+     *
+     * @return the Java command
+     */
+    @Input
+    public abstract Property<String> getJavaCommand();
+
+    /**
+     * The JVM arguments of the image entrypoint.
+     *
+     * @return the JVM arguments
+     */
+    @Input
+    public abstract ListProperty<String> getJvmArgs();
+
+    /**
+     * The environment variables of the image.
+     *
+     * @return the environment variables
+     */
+    @Input
+    public abstract MapProperty<String, String> getEnvironment();
+
+    /**
+     * The TCP ports that the image exposes. Defaults to {@code 8080}.
+     *
+     * @return the exposed ports
+     */
+    @Input
+    public abstract SetProperty<Integer> getPorts();
+
+    /**
+     * The CPU architecture of the image. Defaults to {@code amd64}.
+     *
+     * @return the architecture
+     */
+    @Input
+    public abstract Property<String> getArchitecture();
+
+    /**
+     * The operating system of the image. Defaults to {@code linux}.
+     *
+     * @return the operating system
+     */
+    @Input
+    public abstract Property<String> getOs();
+
+    /**
+     * The reference of the image, for instance {@code hello:1.0}.
+     *
+     * @return the image reference
+     */
+    @Input
+    public abstract Property<String> getImageName();
+
+    /**
+     * The OCI image archive.
+     *
+     * @return the image archive file
+     */
+    @OutputFile
+    public abstract RegularFileProperty getArchiveFile();
+
+    @Inject
+    protected abstract ObjectFactory getObjects();
+
+    private record Layer(File file, String digest, String diffId, String createdBy) {
+    }
+
+    /**
+     * Writes the image archive.
+     *
+     * @throws IOException when the image couldn't be written
+     */
+    @TaskAction
+    public void writeImage() throws IOException {
+        if (getBaseLayers().isEmpty() && DEFAULT_JAVA_COMMAND.equals(getJavaCommand().get())) {
+            throw new GradleException("The image has no base layers to provide the '" + DEFAULT_JAVA_COMMAND + "' command, add the layers of a Java runtime image to baseLayers or set javaCommand");
+        }
+        if (!getMainClass().isPresent()) {
+            throw new GradleException("The image has no main class to launch, set rife2.uberMainClass or the mainClass of the " + getName() + " task");
+        }
+        var layers = new ArrayList<Layer>();
+        for (var base : getBaseLayers()) {
+            layers.add(new Layer(base, OciLayerWriter.digest(base, false), OciLayerWriter.digest(base, true), "base layer " + base.getName()));
+        }
+        // the framework and the dependencies share the lib directory, so their names are made unique together
+        var framework = getFrameworkClasspath().getFiles();
+        var libs = LibraryNames.of(Stream.concat(framework.stream(), getDependencies().getFiles().stream()).toList());
+        addLayer(layers, "dependencies", jars(libs, file -> !framework.contains(file)));
+        addLayer(layers, "rife2", jars(libs, framework::contains));
+        var webapp = new TreeMap<String, File>();
+        if (getWebappDirectory().isPresent() && getWebappDirectory().get().getAsFile().isDirectory()) {
+            collect(webapp, getWebappDirectory().get().getAsFile(), APP_DIRECTORY + "webapp/", patterns -> { });
+        }
+        addLayer(layers, "webapp", webapp);
+        addLayer(layers, "templates", classes(getTemplateClasses(), patterns -> { }));
+        addLayer(layers, "application", classes(getApplicationClasses(), this::excludeTemplateSources));
+
+        var config = config(layers, classpath(libs)).getBytes(StandardCharsets.UTF_8);
+        var configDigest = OciLayerWriter.digest(config);
+        var manifest = manifest(configDigest, config.length, layers).getBytes(StandardCharsets.UTF_8);
+        var manifestDigest = OciLayerWriter.digest(manifest);
+
+        try (var out = OciLayerWriter.tarOutputStream(Files.newOutputStream(getArchiveFile().get().getAsFile().toPath()))) {
+            writeBytes(out, "oci-layout", "{\"imageLayoutVersion\":\"1.0.0\"}".getBytes(StandardCharsets.UTF_8));
+            writeBytes(out, "index.json", index(manifestDigest, manifest.length).getBytes(StandardCharsets.UTF_8));
+            writeBytes(out, "manifest.json", dockerManifest(configDigest, layers).getBytes(StandardCharsets.UTF_8));
+            writeDirectory(out, "blobs/");
+            writeDirectory(out, "blobs/sha256/");
+            writeBytes(out, blob(configDigest), config);
+            writeBytes(out, blob(manifestDigest), manifest);
+            for (var layer : layers) {
+                var entry = new TarArchiveEntry(blob(layer.digest()));
+                entry.setSize(layer.file().length());
+                OciLayerWriter.normalize(entry, 0644);
+                out.putArchiveEntry(entry);
+                Files.copy(layer.file().toPath(), out);
+                out.closeArchiveEntry();
+            }
+        }
+    }
+
+    private void addLayer(List<Layer> layers, String name, Map<String, File> files) throws IOException {
+        if (files.isEmpty()) {
+            return;
+        }
+        var file = new File(getTemporaryDir(), name + ".tar.gz");
+        var writer = new OciLayerWriter(file);
+        try (writer) {
+            for (var entry : files.entrySet()) {
+                writer.writeFile(entry.getKey(), entry.getValue());
+            }
+        }
+        layers.add(new Layer(file, writer.digest(), writer.diffId(), "rife2 " + name));
+    }
+
+    private static Map<String, File> jars(Map<File, String> libs, Predicate<File> filter) {
+        var jars = new TreeMap<String, File>();
+        libs.forEach((file, name) -> {
+            if (filter.test(file)) {
+                jars.put(APP_DIRECTORY + "lib/" + name, file);
+            }
+        });
+        return jars;
+    }
+
+    private Map<String, File> classes(FileCollection classpath, Action<? super PatternFilterable> filter) {
+        var classes = new TreeMap<String, File>();
+        for (var directory : classpath) {
+            if (directory.isDirectory()) {
+                collect(classes, directory, APP_DIRECTORY + "classes/", filter);
+            }
+        }
+        return classes;
+    }
+
+    private void collect(Map<String, File> files, File directory, String prefix, Action<? super PatternFilterable> filter) {
+        getObjects().fileTree().from(directory)
+            .matching(filter)
+            .visit(details -> {
+                if (!details.isDirectory()) {
+                    files.putIfAbsent(prefix + details.getRelativePath().getPathString(), details.getFile());
+                }
+            });
+    }
+
+    private void excludeTemplateSources(PatternFilterable patterns) {
+        patterns.exclude(getExcludes().get());
+        patterns.exclude(new TemplateMarkupSpec(getDetectedTemplateExcludes().get(), false));
+    }
+
+    // the jars are listed in classpath order, since the order of a wildcard isn't specified;
+    // the application directory itself is on the classpath, so that the webapp/ resources can be found
+    private static String classpath(Map<File, String> libs) {
+        var classpath = new ArrayList<String>();
+        classpath.add("/" + APP_DIRECTORY + "classes");
+        libs.values().forEach(name -> classpath.add("/" + APP_DIRECTORY + "lib/" + name));
+        classpath.add("/" + APP_DIRECTORY);
+        return String.join(":", classpath);
+    }
+
+    private String config(List<Layer> layers, String classpath) {
+        var entrypoint = new ArrayList<String>();
+        entrypoint.add(getJavaCommand().get());
+        entrypoint.addAll(getJvmArgs().get());
+        entrypoint.add("-cp");
+        entrypoint.add(classpath);
+        entrypoint.add(getMainClass().get());
+        var environment = new TreeMap<>(getEnvironment().get()).entrySet().stream()
+            .map(variable -> variable.getKey() + "=" + variable.getValue())
+            .collect(Collectors.toList());
+        var ports = getPorts().get().stream().sorted()
+            .map(port -> quote(port + "/tcp") + ":{}")
+            .collect(Collectors.joining(",", "{", "}"));
+        return "{\"architecture\":" + quote(getArchitecture().get()) +
+               ",\"os\":" + quote(getOs().get()) +
+               ",\"config\":{\"Env\":" + array(environment) +
+               ",\"Entrypoint\":" + array(entrypoint) +
+               ",\"WorkingDir\":" + quote("/" + APP_DIRECTORY) +
+               ",\"ExposedPorts\":" + ports + "}" +
+               ",\"rootfs\":{\"type\":\"layers\",\"diff_ids\":" + array(layers.stream().map(Layer::diffId).collect(Collectors.toList())) + "}" +
+               ",\"history\":" + layers.stream().map(layer -> "{\"created_by\":" + quote(layer.createdBy()) + "}").collect(Collectors.joining(",", "[", "]")) +
+               "}";
+    }
+
+    private static String manifest(String configDigest, long configSize, List<Layer> layers) {
+        return "{\"schemaVersion\":2" +
+               ",\"mediaType\":" + quote(MANIFEST_MEDIA_TYPE) +
+               ",\"config\":" + descriptor(CONFIG_MEDIA_TYPE, configDigest, configSize) +
+               ",\"layers\":" + layers.stream().map(layer -> descriptor(LAYER_MEDIA_TYPE, layer.digest(), layer.file().length())).collect(Collectors.joining(",", "[", "]")) +
+               "}";
+    }
+
+    private String index(String manifestDigest, long manifestSize) {
+        var descriptor = descriptor(MANIFEST_MEDIA_TYPE, manifestDigest, manifestSize);
+        return "{\"schemaVersion\":2" +
+               ",\"mediaType\":\"application/vnd.oci.image.index.v1+json\"" +
+               ",\"manifests\":[" + descriptor.substring(0, descriptor.length() - 1) +
+               ",\"annotations\":{\"org.opencontainers.image.ref.name\":" + quote(getImageName().get()) + "}}]" +
+               "}";
+    }
+
+    private String dockerManifest(String configDigest, List<Layer> layers) {
+        return "[{\"Config\":" + quote(blob(configDigest)) +
+               ",\"RepoTags\":" + array(List.of(getImageName().get())) +
+               ",\"Layers\":" + array(layers.stream().map(layer -> blob(layer.digest())).collect(Collectors.toList())) +
+               "}]";
+    }
+
+    private static String descriptor(String mediaType, String digest, long size) {
+        return "{\"mediaType\":" + quote(mediaType) + ",\"digest\":" + quote(digest) + ",\"size\":" + size + "}";
+    }
+
+    private static String blob(String digest) {
+        return "blobs/sha256/" + digest.substring("sha256:".length());
+    }
+
+    private static String array(Collection<String> values) {
+        return values.stream().map(OciImage::quote).collect(Collectors.joining(",", "[", "]"));
+    }
+
+    private static String quote(String value) {
+        var quoted = new StringBuilder("\"");
+        for (var c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                case '\n' -> quoted.append("\\n");
+                case '\r' -> quoted.append("\\r");
+                case '\t' -> quoted.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static void writeBytes(TarArchiveOutputStream out, String name, byte[] bytes) throws IOException {
+        var entry = new TarArchiveEntry(name);
+        entry.setSize(bytes.length);
+        OciLayerWriter.normalize(entry, 0644);
+        out.putArchiveEntry(entry);
+        out.write(bytes);
+        out.closeArchiveEntry();
+    }
+
+    private static void writeDirectory(TarArchiveOutputStream out, String name) throws IOException {
+        var entry = new TarArchiveEntry(name);
+        OciLayerWriter.normalize(entry, 0755);
+        out.putArchiveEntry(entry);
+        out.closeArchiveEntry();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a gzip-compressed OCI image layer, while computing the digests of
+ * its compressed and uncompressed content.
+ * <p>
+ * All entries get the same timestamp, owner and permissions, so that the
+ * same files always produce the same layer digest.
+ */
+class OciLayerWriter implements Closeable {
+    private static final Date TIMESTAMP = new Date(0);
+
+    private final MessageDigest digest_;
+    private final MessageDigest diffId_;
+    private final TarArchiveOutputStream out_;
+    private final Set<String> entries_ = new HashSet<>();
+    private String digestValue_;
+    private String diffIdValue_;
+
+    OciLayerWriter(File file) throws IOException {
+        digest_ = sha256();
+        diffId_ = sha256();
+        var compressed = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath())), digest_);
+        out_ = tarOutputStream(new DigestOutputStream(new GZIPOutputStream(compressed), diffId_));
+    }
+
+    /**
+     * Writes a file, together with the directory entries of its parents.
+     * Files should be written in sorted order.
+     */
+    void writeFile(String name, File file) throws IOException {
+        if (!addEntry(name)) {
+            return;
+        }
+        var entry = new TarArchiveEntry(name);
+        entry.setSize(file.length());
+        normalize(entry, 0644);
+        out_.putArchiveEntry(entry);
+        Files.copy(file.toPath(), out_);
+        out_.closeArchiveEntry();
+    }
+
+    /**
+     * The digest of the compressed layer, available once the writer is closed.
+     */
+    String digest() {
+        return digestValue_;
+    }
+
+    /**
+     * The digest of the uncompressed layer, available once the writer is closed.
+     */
+    String diffId() {
+        return diffIdValue_;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (digestValue_ == null) {
+            out_.close();
+            digestValue_ = "sha256:" + HexFormat.of().formatHex(digest_.digest());
+            diffIdValue_ = "sha256:" + HexFormat.of().formatHex(diffId_.digest());
+        }
+    }
+
+    private boolean addEntry(String name) throws IOException {
+        if (entries_.contains(name)) {
+            return false;
+        }
+        var parent = name.lastIndexOf('/', name.length() - 2);
+        if (parent > 0) {
+            var directory = name.substring(0, parent + 1);
+            if (addEntry(directory)) {
+                var entry = new TarArchiveEntry(directory);
+                normalize(entry, 0755);
+                out_.putArchiveEntry(entry);
+                out_.closeArchiveEntry();
+            }
+        }
+        entries_.add(name);
+        return true;
+    }
+
+    static TarArchiveOutputStream tarOutputStream(OutputStream out) {
+        var tar = new TarArchiveOutputStream(out);
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        return tar;
+    }
+
+    static void normalize(TarArchiveEntry entry, int mode) {
+        entry.setModTime(TIMESTAMP);
+        entry.setIds(0, 0);
+        entry.setNames("", "");
+        entry.setMode((entry.isDirectory() ? TarArchiveEntry.DEFAULT_DIR_MODE & ~0777 : TarArchiveEntry.DEFAULT_FILE_MODE & ~0777) | mode);
+    }
+
+    /**
+     * Computes the digest of the content of a file.
+     *
+     * @param file   the file
+     * @param gunzip {@code true} when the digest of the uncompressed content
+     *               of a gzip file should be computed
+     */
+    static String digest(File file, boolean gunzip) throws IOException {
+        var digest = sha256();
+        try (InputStream in = gunzip ? new GZIPInputStream(Files.newInputStream(file.toPath())) : Files.newInputStream(file.toPath())) {
+            var buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return "sha256:" + HexFormat.of().formatHex(digest.digest());
+    }
+
+    static String digest(byte[] bytes) {
+        return "sha256:" + HexFormat.of().formatHex(sha256().digest(bytes));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
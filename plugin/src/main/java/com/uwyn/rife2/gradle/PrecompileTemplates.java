@@ -18,37 +18,108 @@ package com.uwyn.rife2.gradle;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.file.ConfigurableFileCollection;
 import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.file.FileType;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.model.ObjectFactory;
 import org.gradle.api.provider.ListProperty;
 import org.gradle.api.provider.Property;
 import org.gradle.api.tasks.CacheableTask;
 import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.IgnoreEmptyDirectories;
 import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Nested;
 import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.OutputFile;
 import org.gradle.api.tasks.PathSensitive;
 import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
-import org.gradle.process.ExecOperations;
+import org.gradle.jvm.toolchain.JavaLauncher;
+import org.gradle.work.ChangeType;
+import org.gradle.work.Incremental;
+import org.gradle.work.InputChanges;
+import org.gradle.workers.WorkerExecutor;
 
 import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 /**
  * Gradle task to pre-compile RIFE2 templates
  */
 @CacheableTask
 public abstract class PrecompileTemplates extends DefaultTask {
+    static final String TEMPLATE_CLASSES_PACKAGE = "rife/template";
+    static final int MIN_PARTITION_SIZE = 100;
+
+    private final ConfigurableFileCollection templateFiles_;
+
+    public PrecompileTemplates() {
+        // identifier -> whether the files of the type are only templates when they contain template markup
+        var types = getTypes().zip(getDetectTypes().orElse(false), (configured, detect) -> {
+            var identifiers = new TreeMap<String, Boolean>();
+            if (detect) {
+                TemplateType.values().forEach(type -> identifiers.put(type.identifier(), true));
+            }
+            configured.forEach(type -> identifiers.put(type.identifier(), false));
+            return identifiers;
+        });
+        templateFiles_ = getObjects().fileCollection().from(getTemplatesDirectories().getElements().zip(types, (directories, identifiers) -> {
+            if (identifiers.isEmpty()) {
+                return List.of();
+            }
+            var configured = new ArrayList<String>();
+            var detected = new ArrayList<String>();
+            identifiers.forEach((identifier, markup) -> (markup ? detected : configured).add("**/*." + identifier));
+            return directories.stream()
+                .map(directory -> getObjects().fileTree().from(directory.getAsFile()).matching(patterns -> {
+                    patterns.include(configured);
+                    if (!detected.isEmpty()) {
+                        patterns.include(new TemplateMarkupSpec(detected, true));
+                    }
+                }))
+                .toList();
+        }));
+    }
+
     /**
      * The directories where template files can be found.
      *
      * @return the directories with template files
      */
+    @Internal
+    public abstract ConfigurableFileCollection getTemplatesDirectories();
+
+    /**
+     * The template files in the {@link #getTemplatesDirectories() templates directories}
+     * that match one of the {@link #getTypes() template types}.
+     * <p>
+     * Other files in the templates directories, like images or editor backup
+     * files, aren't inputs of the pre-compilation.
+     *
+     * @return the template files to pre-compile
+     */
     @InputFiles
+    @Incremental
+    @IgnoreEmptyDirectories
     @PathSensitive(PathSensitivity.RELATIVE)
-    public abstract ConfigurableFileCollection getTemplatesDirectories();
+    public FileCollection getTemplateFiles() {
+        return templateFiles_;
+    }
 
     /**
      * The template types to pre-compile.
@@ -58,6 +129,23 @@ public abstract class PrecompileTemplates extends DefaultTask {
     @Input
     public abstract ListProperty<TemplateType> getTypes();
 
+    /**
+     * Indicates whether the template types should be detected from the
+     * files in the templates directories. When enabled, the files of the
+     * {@link TemplateType#values() built-in template types} that contain RIFE2
+     * template markup are pre-compiled, in addition to the files of the
+     * configured {@link #getTypes() types}. Files without markup, like plain
+     * JSON or SVG resources, are left alone; a type needs to be configured when
+     * its templates include fragments without markup.
+     * Defaults to {@code false}.
+     *
+     * @return {@code true} when the template types should be detected; or
+     * {@code false} otherwise
+     */
+    @Input
+    @Optional
+    public abstract Property<Boolean> getDetectTypes();
+
     /**
      * The encoding to use when reading the template files.
      * Defaults to {@code UTF-8}.
@@ -78,6 +166,22 @@ public abstract class PrecompileTemplates extends DefaultTask {
     @Optional
     public abstract Property<Boolean> getVerbose();
 
+    /**
+     * Indicates whether the compiled templates should record the actual
+     * timestamps of the template files. Defaults to {@code false}.
+     * <p>
+     * RIFE2 records the modification time of each template in its compiled
+     * class. Unless the timestamps are preserved, the templates are compiled
+     * from a staged copy that has a fixed timestamp, so that the same templates
+     * in the same project location always produce the same classes.
+     *
+     * @return {@code true} when the timestamps of the template files are preserved; or
+     * {@code false} otherwise
+     */
+    @Input
+    @Optional
+    public abstract Property<Boolean> getPreserveFileTimestamps();
+
     /**
      * Provides the directory into which pre-compiled template class files should be stored.
      *
@@ -86,39 +190,388 @@ public abstract class PrecompileTemplates extends DefaultTask {
     @OutputDirectory
     public abstract DirectoryProperty getOutputDirectory();
 
+    /**
+     * Provides the file in which the include relationships between the templates
+     * are stored, so that the templates that include a changed template can be
+     * recompiled by the next incremental pre-compilation.
+     *
+     * @return the file with the template include graph
+     */
+    @OutputFile
+    public abstract RegularFileProperty getIncludeGraphFile();
+
     @Classpath
     public abstract ConfigurableFileCollection getClasspath();
 
+    /**
+     * Specifies how the template compiler is isolated from the build.
+     * Defaults to {@link TemplateCompilerIsolation#PROCESS}.
+     *
+     * @return the isolation of the template compiler
+     */
+    @Internal
+    public abstract Property<TemplateCompilerIsolation> getIsolation();
+
+    /**
+     * The Java launcher of the template compiler worker process.
+     * Defaults to the launcher of the project's Java toolchain.
+     *
+     * @return the Java launcher of the compiler process
+     */
+    @Nested
+    @Optional
+    public abstract Property<JavaLauncher> getJavaLauncher();
+
+    /**
+     * The maximum heap size of the template compiler worker process, for
+     * instance {@code "2g"}.
+     *
+     * @return the maximum heap size of the compiler process
+     */
+    @Internal
+    public abstract Property<String> getMaxHeapSize();
+
+    /**
+     * The garbage collector of the template compiler worker process, for
+     * instance {@code "G1"}, {@code "Parallel"} or {@code "Serial"}. The
+     * collector is selected with the matching {@code -XX:+Use<name>GC} option.
+     *
+     * @return the garbage collector of the compiler process
+     */
+    @Internal
+    public abstract Property<String> getGarbageCollector();
+
+    /**
+     * Additional JVM arguments of the template compiler worker process.
+     *
+     * @return the JVM arguments of the compiler process
+     */
+    @Internal
+    public abstract ListProperty<String> getJvmArgs();
+
+    /**
+     * The shared template compiler that is used with the
+     * {@link TemplateCompilerIsolation#CLASSLOADER} isolation.
+     *
+     * @return the template compiler build service
+     */
+    @Internal
+    public abstract Property<TemplateCompilerService> getCompilerService();
+
+    /**
+     * Specifies the maximum number of workers that compile templates concurrently.
+     * The templates are split by type, and large directories are split into
+     * chunks, to keep the workers equally busy. The RIFE2 plugin sets it to
+     * {@link Rife2Extension#getTemplateCompilerParallelism()}, which defaults
+     * to the number of available processors. Without a value, a single
+     * worker is used.
+     * <p>
+     * With the {@link TemplateCompilerIsolation#CLASSLOADER} isolation, every
+     * worker uses its own compiler classloader, since the RIFE2 template
+     * compiler keeps global state.
+     *
+     * @return the maximum number of concurrent template compilers
+     */
+    @Internal
+    public abstract Property<Integer> getMaxParallelism();
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
+    @Inject
+    protected abstract ObjectFactory getObjects();
+
     @Inject
-    protected abstract ExecOperations getExecOperations();
+    protected abstract FileSystemOperations getFileSystemOperations();
 
     /**
-     * Perform the template pre-compilation
+     * Perform the template pre-compilation.
+     * <p>
+     * The templates are compiled by a Gradle worker that has the RIFE2
+     * compiler on its classpath. Depending on the {@link #getIsolation() isolation},
+     * this is either a worker process that Gradle keeps alive between builds,
+     * or the {@link TemplateCompilerService} that keeps the compilers in isolated
+     * classloaders inside the Gradle daemon across builds. In both cases
+     * other tasks can run while the templates compile.
+     * <p>
+     * When Gradle reports which template files changed since the previous
+     * execution, only the added and modified templates are compiled, together
+     * with all the templates that directly or transitively include a changed
+     * template. The classes of the removed templates are deleted.
+     *
+     * @param inputChanges the changes of the template files
      */
     @TaskAction
-    public void precompileTemplates() {
-        for (var type : getTypes().get()) {
-            getTemplatesDirectories().getFiles().forEach(dir -> {
-                if (Files.exists(dir.toPath())) {
-                    getExecOperations().javaexec(javaexec -> {
-                        javaexec.setClasspath(getClasspath());
-                        javaexec.getMainClass().set("rife.template.TemplateDeployer");
-                        List<String> args = new ArrayList<>();
-                        if (getVerbose().isPresent() && Boolean.TRUE.equals(getVerbose().get())) {
-                            args.add("-verbose");
-                        }
-                        args.add("-t");
-                        args.add(type.identifier());
-                        args.add("-d");
-                        args.add(getOutputDirectory().get().getAsFile().getPath());
-                        args.add("-encoding");
-                        args.add(getEncoding().orElse("UTF-8").get());
-                        args.add(dir.getPath());
-                        javaexec.args(args);
-                    });
+    public void precompileTemplates(InputChanges inputChanges) {
+        var templates = inputChanges.isIncremental() ? changedTemplates(inputChanges) : null;
+        if (templates == null) {
+            templates = allTemplates();
+        }
+
+        // all the templates directories are passed to the compiler, so that includes are resolved across them
+        var directories = existingTemplatesDirectories();
+        if (!getPreserveFileTimestamps().getOrElse(false)) {
+            directories = stage(directories);
+        }
+
+        var partitions = partition(templates, directories.stream().map(File::getPath).toList());
+        if (partitions.isEmpty()) {
+            return;
+        }
+
+        var isolation = getIsolation().getOrElse(TemplateCompilerIsolation.PROCESS);
+        var queue = switch (isolation) {
+            case PROCESS -> getWorkerExecutor().processIsolation(spec -> {
+                spec.getClasspath().from(getClasspath());
+                spec.forkOptions(fork -> {
+                    if (getJavaLauncher().isPresent()) {
+                        fork.setExecutable(getJavaLauncher().get().getExecutablePath().getAsFile());
+                    }
+                    if (getMaxHeapSize().isPresent()) {
+                        fork.setMaxHeapSize(getMaxHeapSize().get());
+                    }
+                    if (getGarbageCollector().isPresent()) {
+                        fork.jvmArgs("-XX:+Use" + getGarbageCollector().get() + "GC");
+                    }
+                    fork.jvmArgs(getJvmArgs().get());
+                });
+            });
+            case CLASSLOADER -> getWorkerExecutor().noIsolation();
+        };
+        for (var deployments : partitions) {
+            queue.submit(TemplateCompilerWorkAction.class, parameters -> {
+                if (isolation == TemplateCompilerIsolation.CLASSLOADER) {
+                    parameters.getCompilerService().set(getCompilerService());
+                    parameters.getClasspath().from(getClasspath());
                 }
+                parameters.getDeployments().set(deployments);
+                parameters.getOutputDirectory().set(getOutputDirectory());
+                parameters.getEncoding().set(getEncoding().orElse("UTF-8"));
+                parameters.getVerbose().set(getVerbose().orElse(false));
             });
+        }
+    }
+
+    /**
+     * Cleans the output and collects all the templates to compile.
+     * <p>
+     * Only the types that are actually present in the templates directories
+     * are compiled.
+     *
+     * @return the relative paths of the templates, per type
+     */
+    private SortedMap<String, SortedSet<String>> allTemplates() {
+        var output = getOutputDirectory().get().getAsFile();
+        getFileSystemOperations().delete(spec -> spec.delete(output));
+        output.mkdirs();
+
+        var types = typeIdentifiers();
+        var directories = existingTemplatesDirectories();
+        var templates = new TreeMap<String, SortedSet<String>>();
+        var graph = new TemplateIncludeGraph();
+        getTemplateFiles().getAsFileTree().visit(details -> {
+            if (details.isDirectory()) {
+                return;
+            }
+            var path = details.getRelativePath().getPathString();
+            var type = extension(path);
+            if (!types.contains(type) || templatesDirectory(directories, details.getFile()) == null) {
+                return;
+            }
+            graph.update(type, TemplateIncludeGraph.templateName(type, path), parseIncludes(details.getFile()));
+            templates.computeIfAbsent(type, t -> new TreeSet<>()).add(path);
+        });
+        graph.store(getIncludeGraphFile().get().getAsFile().toPath());
+        if (getDetectTypes().getOrElse(false)) {
+            getLogger().info("Detected template types: {}", templates.keySet());
+        }
+        return templates;
+    }
+
+    /**
+     * Collects the templates that need to be recompiled because of the reported
+     * changes, and deletes the classes of the removed templates.
+     *
+     * @return the relative paths of the templates, per type;
+     * or {@code null} when all the templates need to be compiled
+     */
+    private SortedMap<String, SortedSet<String>> changedTemplates(InputChanges inputChanges) {
+        var graph = TemplateIncludeGraph.load(getIncludeGraphFile().get().getAsFile().toPath());
+        if (graph == null) {
+            return null;
+        }
+
+        var types = typeIdentifiers();
+        var directories = existingTemplatesDirectories();
+
+        var compiled = new TreeMap<String, SortedSet<String>>();
+        // type -> names of the changed templates, including the removed ones
+        var changed = new TreeMap<String, Set<String>>();
+        for (var change : inputChanges.getFileChanges(getTemplateFiles())) {
+            if (change.getFileType() == FileType.DIRECTORY) {
+                continue;
+            }
+            var path = change.getNormalizedPath();
+            var type = extension(path);
+            if (!types.contains(type)) {
+                continue;
+            }
+            var name = TemplateIncludeGraph.templateName(type, path);
+            changed.computeIfAbsent(type, t -> new TreeSet<>()).add(name);
+            if (change.getChangeType() == ChangeType.REMOVED) {
+                graph.remove(type, name);
+                deleteTemplateClasses(type, path);
+                continue;
+            }
+            graph.update(type, name, parseIncludes(change.getFile()));
+            if (templatesDirectory(directories, change.getFile()) != null) {
+                compiled.computeIfAbsent(type, t -> new TreeSet<>()).add(path);
+            }
+        }
+
+        // templates that include a changed template have to be recompiled too
+        changed.forEach((type, names) -> {
+            for (var dependent : graph.dependents(type, names)) {
+                var path = TemplateIncludeGraph.templatePath(type, dependent);
+                if (directories.stream().anyMatch(directory -> new File(directory, path).isFile())) {
+                    compiled.computeIfAbsent(type, t -> new TreeSet<>()).add(path);
+                }
+            }
+        });
+        graph.store(getIncludeGraphFile().get().getAsFile().toPath());
+        return compiled;
+    }
+
+    /**
+     * Copies the template files to a staging directory per templates directory,
+     * and resets their timestamps.
+     *
+     * @param directories the templates directories
+     * @return the staging directories, in the same order
+     */
+    private List<File> stage(List<File> directories) {
+        var types = typeIdentifiers();
+        var staged = new ArrayList<File>();
+        for (var i = 0; i < directories.size(); i++) {
+            var directory = directories.get(i);
+            var staging = new File(getTemporaryDir(), "templates/" + i);
+            getFileSystemOperations().sync(spec -> {
+                spec.from(directory);
+                spec.into(staging);
+                types.forEach(type -> spec.include("**/*." + type));
+            });
+            try (var files = Files.walk(staging.toPath())) {
+                files.filter(Files::isRegularFile)
+                    .forEach(file -> file.toFile().setLastModified(Rife2Plugin.REPRODUCIBLE_TIMESTAMP));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            staged.add(staging);
+        }
+        return staged;
+    }
+
+    /**
+     * Splits the templates into at most {@link #getMaxParallelism()} partitions of
+     * similar size, each of which is compiled by its own worker. Small template
+     * sets are kept in a single partition, since starting a worker costs more
+     * than compiling a few templates.
+     * <p>
+     * Every deployment gets all the templates directories, so that a template
+     * compiles the same way regardless of the partition it ends up in.
+     *
+     * @param templates   the relative paths of the templates, per type
+     * @param directories the templates directories
+     * @return the template deployments of each partition
+     */
+    private List<List<TemplateDeployment>> partition(SortedMap<String, SortedSet<String>> templates, List<String> directories) {
+        var total = templates.values().stream()
+            .mapToInt(Set::size)
+            .sum();
+        if (total == 0) {
+            return List.of();
+        }
+
+        var count = Math.min(Math.max(1, getMaxParallelism().getOrElse(1)), (total + MIN_PARTITION_SIZE - 1) / MIN_PARTITION_SIZE);
+        var size = (total + count - 1) / count;
+        var partitions = new ArrayList<List<TemplateDeployment>>();
+        var current = new ArrayList<TemplateDeployment>();
+        var remaining = size;
+        for (var typeTemplates : templates.entrySet()) {
+            var paths = new ArrayList<>(typeTemplates.getValue());
+            var offset = 0;
+            while (offset < paths.size()) {
+                var chunk = paths.subList(offset, Math.min(paths.size(), offset + remaining));
+                current.add(new TemplateDeployment(typeTemplates.getKey(), directories, chunk));
+                offset += chunk.size();
+                remaining -= chunk.size();
+                if (remaining == 0) {
+                    partitions.add(current);
+                    current = new ArrayList<>();
+                    remaining = size;
+                }
+            }
+        }
+        if (!current.isEmpty()) {
+            partitions.add(current);
+        }
+        return partitions;
+    }
+
+    /**
+     * Determines the identifiers of the template types to compile.
+     *
+     * @return the configured template types; with all the built-in types when
+     * the types are detected from the template files
+     */
+    private Set<String> typeIdentifiers() {
+        var types = new TreeSet<String>();
+        getTypes().get().forEach(type -> types.add(type.identifier()));
+        if (getDetectTypes().getOrElse(false)) {
+            TemplateType.values().forEach(type -> types.add(type.identifier()));
+        }
+        return types;
+    }
+
+    private SortedSet<String> parseIncludes(File template) {
+        try {
+            return TemplateIncludeGraph.parseIncludes(Files.readString(template.toPath(), Charset.forName(getEncoding().getOrElse("UTF-8"))));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<File> existingTemplatesDirectories() {
+        return getTemplatesDirectories().getFiles().stream()
+            .filter(dir -> Files.exists(dir.toPath()))
+            .toList();
+    }
+
+    private void deleteTemplateClasses(String type, String path) {
+        var name = path.substring(0, path.length() - type.length() - 1);
+        var classes = getOutputDirectory().get().getAsFile().toPath()
+            .resolve(TEMPLATE_CLASSES_PACKAGE).resolve(type).resolve(name).getParent();
+        var simpleName = new File(name).getName();
+        getFileSystemOperations().delete(spec -> spec.delete(getObjects().fileTree()
+            .from(classes)
+            .include(simpleName + ".class", simpleName + "$*.class")));
+    }
+
+    private static File templatesDirectory(List<File> directories, File template) {
+        var path = template.toPath();
+        for (var directory : directories) {
+            if (path.startsWith(directory.toPath())) {
+                return directory;
+            }
+        }
+        return null;
+    }
 
+    private static String extension(String path) {
+        var index = path.lastIndexOf('.');
+        if (index == -1 || index < path.lastIndexOf('/')) {
+            return "";
         }
+        return path.substring(index + 1);
     }
 }
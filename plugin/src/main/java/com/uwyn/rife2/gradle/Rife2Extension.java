@@ -62,6 +62,20 @@ public abstract class Rife2Extension {
      */
     public abstract ListProperty<TemplateType> getPrecompiledTemplateTypes();
 
+    /**
+     * Specifies whether the template types to precompile should be detected
+     * from the files in the template directories, instead of only using the
+     * {@link #getPrecompiledTemplateTypes() precompiled template types}.
+     * Only the files of the built-in types that contain RIFE2 template markup
+     * are detected as templates; other files with the same extensions, like
+     * plain JSON or SVG resources, stay in the packaged application.
+     * Defaults to {@code false}.
+     *
+     * @return {@code true} when the template types should be detected;
+     * {@code false} otherwise
+     */
+    public abstract Property<Boolean> getDetectTemplateTypes();
+
     /**
      * Specifies the directories where the template files can be found.
      * By default, this includes {@code "src/main/resources/templates"}.
@@ -69,4 +83,75 @@ public abstract class Rife2Extension {
      * @return the collection of directories to look for template files
      */
     public abstract ConfigurableFileCollection getTemplateDirectories();
+
+    /**
+     * Specifies how the template compiler is isolated from the build.
+     * Defaults to {@link TemplateCompilerIsolation#PROCESS}.
+     * <p>
+     * With {@link TemplateCompilerIsolation#CLASSLOADER}, the compiler runs
+     * inside the Gradle daemon, which makes repeated pre-compilations faster
+     * once the daemon is warm.
+     *
+     * @return the isolation of the template compiler
+     */
+    public abstract Property<TemplateCompilerIsolation> getTemplateCompilerIsolation();
+
+    /**
+     * Specifies the maximum number of workers that pre-compile templates
+     * concurrently. Defaults to the number of available processors.
+     * <p>
+     * The actual parallelism is also limited by Gradle's maximum number of
+     * workers, and small template sets are always compiled by a single worker.
+     *
+     * @return the maximum number of concurrent template compilers
+     */
+    public abstract Property<Integer> getTemplateCompilerParallelism();
+
+    /**
+     * Specifies how the dependencies are stored in the uber jar.
+     * Defaults to {@link UberJarFormat#FLAT}.
+     * <p>
+     * With {@link UberJarFormat#NESTED}, the dependency jars are kept intact,
+     * which preserves their services. The launcher uses the multi-release
+     * entries for the running Java version, and verifies signed jars when it
+     * starts.
+     *
+     * @return the format of the uber jar
+     */
+    public abstract Property<UberJarFormat> getUberJarFormat();
+
+    /**
+     * Specifies whether the classes in the uber jar should be ordered by the
+     * order in which they're loaded at startup, as recorded by a training run
+     * of the {@code rife2ClassLoadOrder} task. Defaults to {@code false}.
+     *
+     * @return {@code true} when the uber jar entries are ordered by class loading;
+     * {@code false} otherwise
+     */
+    public abstract Property<Boolean> getUberJarClassLoadOrder();
+
+    /**
+     * Specifies whether the classes that aren't reachable from the main class
+     * should be left out of the uber jar. RIFE2 and the pre-compiled templates
+     * are always kept, the service providers and the classes that are named
+     * by a constant string in the reachable classes are found, which covers
+     * the embedded Jetty server. Classes that are only loaded by a name that
+     * is computed or configured at runtime need to be kept with the keep
+     * rules of the {@code uberJar} task. Defaults to {@code false}.
+     *
+     * @return {@code true} when the uber jar is shrunk;
+     * {@code false} otherwise
+     */
+    public abstract Property<Boolean> getShrinkUberJar();
+
+    /**
+     * Specifies whether the class transformations of the RIFE2 agent should be
+     * applied at build time by the {@code rife2Instrument} task. The jar
+     * archives then contain the instrumented classes and the web application
+     * can run in production without the agent. Defaults to {@code false}.
+     *
+     * @return {@code true} when the classes are instrumented at build time;
+     * {@code false} otherwise
+     */
+    public abstract Property<Boolean> getInstrumentClasses();
 }
@@ -15,6 +15,7 @@
  */
 package com.uwyn.rife2.gradle;
 
+import org.gradle.api.NamedDomainObjectProvider;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.artifacts.Configuration;
@@ -25,29 +26,47 @@ import org.gradle.api.attributes.Bundling;
 import org.gradle.api.component.AdhocComponentWithVariants;
 import org.gradle.api.component.ConfigurationVariantDetails;
 import org.gradle.api.file.ConfigurableFileCollection;
-import org.gradle.api.file.DuplicatesStrategy;
+import org.gradle.api.file.Directory;
+import org.gradle.api.file.FileSystemLocation;
 import org.gradle.api.plugins.BasePluginExtension;
 import org.gradle.api.plugins.JavaApplication;
 import org.gradle.api.plugins.JavaPlugin;
 import org.gradle.api.plugins.JavaPluginExtension;
 import org.gradle.api.plugins.PluginContainer;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.specs.Spec;
 import org.gradle.api.tasks.JavaExec;
 import org.gradle.api.tasks.SourceSet;
+import org.gradle.api.tasks.Sync;
 import org.gradle.api.tasks.TaskContainer;
 import org.gradle.api.tasks.TaskProvider;
 import org.gradle.api.tasks.bundling.Jar;
 import org.gradle.api.tasks.testing.Test;
-import org.gradle.process.CommandLineArgumentProvider;
+import org.gradle.jvm.toolchain.JavaToolchainService;
 
+import java.io.File;
+import java.time.Duration;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 public class Rife2Plugin implements Plugin<Project> {
     static final List<String> DEFAULT_TEMPLATES_DIRS = List.of("src/main/resources/templates");
     static final String DEFAULT_GENERATED_RIFE2_CLASSES_DIR = "generated/classes/rife2";
+    static final String DEFAULT_INSTRUMENTED_CLASSES_DIR = "generated/classes/rife2-instrumented";
+    static final String DEFAULT_TEMPLATE_INCLUDE_GRAPH_FILE = "generated/rife2/template-includes.txt";
     static final String RIFE2_GROUP = "rife2";
     static final String WEBAPP_SRCDIR = "src/main/webapp";
+    static final String DEFAULT_UBER_JAR_DEPENDENCIES_FILE = "rife2/uber-jar-dependencies.jar";
+    static final String DEFAULT_THIN_DISTRIBUTION_DIR = "rife2/thin";
+    static final String DEFAULT_OCI_IMAGE_FILE = "rife2/image.tar";
+    static final String DEFAULT_CDS_DIR = "rife2/cds";
+    static final String DEFAULT_RUNTIME_DIR = "rife2/runtime";
+    static final String DEFAULT_CLASS_LOAD_ORDER_FILE = "rife2/class-load-order.txt";
     static final String PRECOMPILE_TEMPLATES_TASK_NAME = "precompileTemplates";
+    // the same timestamp as Gradle uses for reproducible archives: 1980-02-01 00:00 in the local time zone
+    static final long REPRODUCIBLE_TIMESTAMP = new GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).getTimeInMillis();
     static final String DEPENDENCY_JETTY_SERVER = "org.eclipse.jetty:jetty-server:11.0.14";
     static final String DEPENDENCY_JETTY_SERVLET = "org.eclipse.jetty:jetty-servlet:11.0.14";
     static final String DEPENDENCY_SLF4J_SIMPLE = "org.slf4j:slf4j-simple:2.0.5";
@@ -66,14 +85,20 @@ public class Rife2Plugin implements Plugin<Project> {
         var rife2Configuration = createRife2Configuration(configurations, dependencyHandler, rife2Extension);
         var rife2CompilerClasspath = createRife2CompilerClasspathConfiguration(configurations, rife2Configuration);
         var rife2AgentClasspath = createRife2AgentConfiguration(configurations, dependencyHandler, rife2Extension);
-        configurations.getByName(JavaPlugin.IMPLEMENTATION_CONFIGURATION_NAME).extendsFrom(rife2Configuration);
+        configurations.named(JavaPlugin.IMPLEMENTATION_CONFIGURATION_NAME).configure(conf -> conf.extendsFrom(rife2Configuration.get()));
 
-        var precompileTemplates = registerPrecompileTemplateTask(project, rife2CompilerClasspath, rife2Extension);
+        var precompileTemplates = registerPrecompileTemplateTask(project, javaPluginExtension, rife2CompilerClasspath, rife2Extension);
         createRife2DevelopmentOnlyConfiguration(project, configurations, dependencyHandler, rife2Extension.getTemplateDirectories(), rife2Extension);
         exposePrecompiledTemplatesToTestTask(project, configurations, dependencyHandler, precompileTemplates, rife2Extension);
         configureAgent(project, plugins, rife2Extension, rife2AgentClasspath);
-        TaskProvider<Jar> uberJarTask = registerUberJarTask(project, plugins, javaPluginExtension, rife2Extension, tasks, precompileTemplates);
-        bundlePrecompiledTemplatesIntoJarFile(tasks, precompileTemplates, rife2Extension);
+        var instrumentTask = registerInstrumentTask(project, javaPluginExtension, tasks, rife2AgentClasspath);
+        TaskProvider<UberJar> uberJarTask = registerUberJarTask(project, plugins, javaPluginExtension, rife2Extension, tasks, precompileTemplates, instrumentTask);
+        var thinDistributionTask = registerThinDistributionTask(project, plugins, javaPluginExtension, rife2Extension, tasks, precompileTemplates, instrumentTask);
+        registerClassLoadOrderTask(project, javaPluginExtension, rife2Extension, tasks, thinDistributionTask, uberJarTask);
+        registerOciImageTask(project, plugins, javaPluginExtension, rife2Extension, tasks, precompileTemplates, rife2CompilerClasspath);
+        registerCdsArchiveTask(project, javaPluginExtension, tasks, uberJarTask);
+        registerRuntimeTask(project, javaPluginExtension, tasks);
+        bundlePrecompiledTemplatesIntoJarFile(tasks, precompileTemplates, instrumentTask, rife2Extension);
 
         configureMavenPublishing(project, plugins, configurations, uberJarTask);
     }
@@ -82,13 +107,18 @@ public class Rife2Plugin implements Plugin<Project> {
     private static void configureMavenPublishing(Project project,
                                                  PluginContainer plugins,
                                                  ConfigurationContainer configurations,
-                                                 TaskProvider<Jar> uberJarTask) {
+                                                 TaskProvider<UberJar> uberJarTask) {
+        var objects = project.getObjects();
+        var components = project.getComponents();
         plugins.withId("maven-publish", unused -> {
             var rife2UberJarElements = configurations.create("rife2UberJarElements", conf -> {
                 conf.setDescription("Exposes the uber jar archive of the RIFE2 web application.");
                 conf.setCanBeResolved(false);
                 conf.setCanBeConsumed(true);
-                conf.getOutgoing().artifact(uberJarTask, artifact -> artifact.setClassifier("uber"));
+                conf.getOutgoing().artifact(uberJarTask.flatMap(UberJar::getArchiveFile), artifact -> {
+                    artifact.setClassifier("uber");
+                    artifact.builtBy(uberJarTask);
+                });
 
                 var runtimeAttributes = configurations.getByName(JavaPlugin.RUNTIME_ELEMENTS_CONFIGURATION_NAME).getAttributes();
                 conf.attributes(attrs -> {
@@ -96,7 +126,7 @@ public class Rife2Plugin implements Plugin<Project> {
                         Object value = runtimeAttributes.getAttribute(attribute);
                         //noinspection unchecked
                         if (Bundling.class.equals(attribute.getType())) {
-                            attrs.attribute(Bundling.BUNDLING_ATTRIBUTE, project.getObjects().named(Bundling.class, Bundling.SHADOWED));
+                            attrs.attribute(Bundling.BUNDLING_ATTRIBUTE, objects.named(Bundling.class, Bundling.SHADOWED));
                         } else {
                             attrs.attribute((Attribute<Object>) attribute, value);
                         }
@@ -104,7 +134,7 @@ public class Rife2Plugin implements Plugin<Project> {
                 });
             });
 
-            var component = (AdhocComponentWithVariants) project.getComponents().getByName("java");
+            var component = (AdhocComponentWithVariants) components.getByName("java");
             component.addVariantsFromConfiguration(rife2UberJarElements, ConfigurationVariantDetails::mapToOptional);
         });
     }
@@ -114,29 +144,90 @@ public class Rife2Plugin implements Plugin<Project> {
                                                              DependencyHandler dependencyHandler,
                                                              TaskProvider<PrecompileTemplates> precompileTemplatesTask,
                                                              Rife2Extension rife2Extension) {
-        var test_config = configurations.getByName(JavaPlugin.TEST_RUNTIME_ONLY_CONFIGURATION_NAME);
-        test_config.getDependencies()
-            .add(dependencyHandler.create(project.files(precompileTemplatesTask)));
-        addServerDependenciesWhenNeeded(project, test_config, dependencyHandler, rife2Extension);
+        var templateClasses = project.files(precompileTemplatesTask);
+        configurations.named(JavaPlugin.TEST_RUNTIME_ONLY_CONFIGURATION_NAME).configure(test_config -> {
+            test_config.getDependencies()
+                .add(dependencyHandler.create(templateClasses));
+            addServerDependenciesWhenNeeded(test_config, dependencyHandler, rife2Extension);
+        });
     }
 
     private static void bundlePrecompiledTemplatesIntoJarFile(TaskContainer tasks,
                                                               TaskProvider<PrecompileTemplates> precompileTemplatesTask,
+                                                              TaskProvider<InstrumentClasses> instrumentTask,
                                                               Rife2Extension rife2Extension) {
         tasks.named("jar", Jar.class, jar -> {
             jar.from(precompileTemplatesTask);
             excludeTemplateSourcesInClassPath(jar, rife2Extension);
+            replaceInstrumentedClasses(jar, instrumentTask, rife2Extension);
+        });
+    }
+
+    private static void replaceInstrumentedClasses(Jar jar,
+                                                   TaskProvider<InstrumentClasses> instrumentTask,
+                                                   Rife2Extension rife2Extension) {
+        var directory = instrumentTask.flatMap(InstrumentClasses::getOutputDirectory);
+        jar.from(instrumentedClasses(instrumentTask, rife2Extension));
+        jar.exclude(new InstrumentedClassesSpec(rife2Extension.getInstrumentClasses(), directory));
+    }
+
+    private static Provider<List<Directory>> instrumentedClasses(TaskProvider<InstrumentClasses> instrumentTask,
+                                                                 Rife2Extension rife2Extension) {
+        return rife2Extension.getInstrumentClasses()
+            .flatMap(enabled -> enabled ? instrumentTask.flatMap(InstrumentClasses::getOutputDirectory) : null)
+            .map(List::of)
+            .orElse(List.of());
+    }
+
+    private static TaskProvider<InstrumentClasses> registerInstrumentTask(Project project,
+                                                                          JavaPluginExtension javaPluginExtension,
+                                                                          TaskContainer tasks,
+                                                                          NamedDomainObjectProvider<Configuration> rife2AgentClasspath) {
+        var runtimeClasspath = project.getConfigurations().named(JavaPlugin.RUNTIME_CLASSPATH_CONFIGURATION_NAME);
+        return tasks.register("rife2Instrument", InstrumentClasses.class, task -> {
+            task.setGroup(RIFE2_GROUP);
+            task.setDescription("Applies the class transformations of the RIFE2 agent to the compiled classes.");
+            task.getAgentClasspath().from(rife2AgentClasspath);
+            task.getClassesDirectories().from(javaPluginExtension.getSourceSets().getByName(SourceSet.MAIN_SOURCE_SET_NAME).getOutput().getClassesDirs());
+            task.getClasspath().from(runtimeClasspath);
+            task.getOutputDirectory().convention(project.getLayout().getBuildDirectory().dir(DEFAULT_INSTRUMENTED_CLASSES_DIR));
         });
     }
 
     private static void excludeTemplateSourcesInClassPath(Jar jar, Rife2Extension rife2Extension) {
+        jar.exclude(new TemplateSourcesSpec(templateSourceExcludes(rife2Extension), detectedTemplateSourceExcludes(rife2Extension)));
+    }
+
+    private static Provider<List<String>> templateSourceExcludes(Rife2Extension rife2Extension) {
+        return templateSourcePatterns(rife2Extension, rife2Extension.getPrecompiledTemplateTypes().map(LinkedHashSet::new));
+    }
+
+    private static Provider<List<String>> detectedTemplateSourceExcludes(Rife2Extension rife2Extension) {
+        // the files of the detected types are only templates when they contain template markup
+        var templateTypes = rife2Extension.getPrecompiledTemplateTypes().zip(rife2Extension.getDetectTemplateTypes(), (types, detect) -> {
+            var result = new LinkedHashSet<TemplateType>();
+            if (Boolean.TRUE.equals(detect)) {
+                result.addAll(TemplateType.values());
+                result.removeAll(types);
+            }
+            return result;
+        });
+        return templateSourcePatterns(rife2Extension, templateTypes);
+    }
+
+    private static Provider<List<String>> templateSourcePatterns(Rife2Extension rife2Extension, Provider<? extends Set<TemplateType>> templateTypes) {
         // This isn't great because it needs to be partially hardcoded, in order to avoid the templates
         // declared in `src/main/resources/templates` to be included in the jar file.
-        rife2Extension.getTemplateDirectories().forEach(dir -> {
-            if (dir.getAbsolutePath().contains("src/main/resources/")) {
-                rife2Extension.getPrecompiledTemplateTypes().get().forEach(templateType ->
-                    jar.exclude("/" + dir.getName() + "/**." + templateType.identifier().toLowerCase()));
-            }
+        return rife2Extension.getTemplateDirectories().getElements().zip(templateTypes, (dirs, types) -> {
+            var excludes = new ArrayList<String>();
+            dirs.forEach(location -> {
+                var dir = location.getAsFile();
+                if (dir.getAbsolutePath().contains("src/main/resources/")) {
+                    types.forEach(templateType ->
+                        excludes.add("/" + dir.getName() + "/**." + templateType.identifier().toLowerCase()));
+                }
+            });
+            return excludes;
         });
     }
 
@@ -145,64 +236,208 @@ public class Rife2Plugin implements Plugin<Project> {
                                                          DependencyHandler dependencyHandler,
                                                          ConfigurableFileCollection templateDirectories,
                                                          Rife2Extension rife2Extension) {
-        var rife2DevelopmentOnly = configurations.create("rife2DevelopmentOnly", conf -> {
+        var layout = project.getLayout();
+        var rife2DevelopmentOnly = configurations.register("rife2DevelopmentOnly", conf -> {
             conf.setDescription("Dependencies which should only be visible when running the application in development mode (and not in tests).");
             conf.setCanBeConsumed(false);
             conf.setCanBeResolved(false);
+            conf.getDependencies().addAllLater(templateDirectories.getElements().map(locations ->
+                locations.stream().map(fs -> dependencyHandler.create(layout.files(fs))).collect(Collectors.toList()))
+            );
+            addServerDependenciesWhenNeeded(conf, dependencyHandler, rife2Extension);
         });
-        rife2DevelopmentOnly.getDependencies().addAllLater(templateDirectories.getElements().map(locations ->
-            locations.stream().map(fs -> dependencyHandler.create(project.files(fs))).collect(Collectors.toList()))
-        );
-        addServerDependenciesWhenNeeded(project, rife2DevelopmentOnly, dependencyHandler, rife2Extension);
 
-        configurations.getByName(JavaPlugin.RUNTIME_CLASSPATH_CONFIGURATION_NAME).extendsFrom(rife2DevelopmentOnly);
+        configurations.named(JavaPlugin.RUNTIME_CLASSPATH_CONFIGURATION_NAME).configure(conf -> conf.extendsFrom(rife2DevelopmentOnly.get()));
     }
 
-    private static void addServerDependenciesWhenNeeded(Project project, Configuration config, DependencyHandler dependencyHandler, Rife2Extension rife2Extension) {
-        if (Boolean.TRUE.equals(rife2Extension.getIncludeServerDependencies().get())) {
-            for (var s : Arrays.asList(DEPENDENCY_JETTY_SERVER, DEPENDENCY_JETTY_SERVLET, DEPENDENCY_SLF4J_SIMPLE)) {
-                config.getDependencies().addLater(project.provider(() -> dependencyHandler.create(s)));
-            }
-        }
+    private static void addServerDependenciesWhenNeeded(Configuration config, DependencyHandler dependencyHandler, Rife2Extension rife2Extension) {
+        config.getDependencies().addAllLater(rife2Extension.getIncludeServerDependencies().map(include -> include
+            ? Stream.of(DEPENDENCY_JETTY_SERVER, DEPENDENCY_JETTY_SERVLET, DEPENDENCY_SLF4J_SIMPLE).map(dependencyHandler::create).toList()
+            : List.of()));
     }
 
-    private static TaskProvider<Jar> registerUberJarTask(Project project,
-                                                         PluginContainer plugins,
-                                                         JavaPluginExtension javaPluginExtension,
-                                                         Rife2Extension rife2Extension,
-                                                         TaskContainer tasks,
-                                                         TaskProvider<PrecompileTemplates> precompileTemplatesTask) {
-        return tasks.register("uberJar", Jar.class, jar -> {
+    private static TaskProvider<UberJar> registerUberJarTask(Project project,
+                                                             PluginContainer plugins,
+                                                             JavaPluginExtension javaPluginExtension,
+                                                             Rife2Extension rife2Extension,
+                                                             TaskContainer tasks,
+                                                             TaskProvider<PrecompileTemplates> precompileTemplatesTask,
+                                                             TaskProvider<InstrumentClasses> instrumentTask) {
+        var runtimeClasspath = project.getConfigurations().named(JavaPlugin.RUNTIME_CLASSPATH_CONFIGURATION_NAME);
+        var dependenciesTask = tasks.register("uberJarDependencies", UberJarDependencies.class, task -> {
+            task.setGroup(RIFE2_GROUP);
+            task.setDescription("Merges the dependencies of the web application for the uber jar archive.");
+            task.getDependencies().from(runtimeClasspath);
+            task.getArchiveFile().set(project.getLayout().getBuildDirectory().file(DEFAULT_UBER_JAR_DEPENDENCIES_FILE));
+            task.getPreserveFileTimestamps().convention(false);
+        });
+        var base = project.getExtensions().getByType(BasePluginExtension.class);
+        return tasks.register("uberJar", UberJar.class, jar -> {
             jar.setGroup(RIFE2_GROUP);
             jar.setDescription("Assembles the web application and all dependencies into a single jar archive.");
-            var base = project.getExtensions().getByType(BasePluginExtension.class);
-            jar.getArchiveBaseName().convention(project.provider(() -> base.getArchivesName().get() + "-uber"));
-            jar.setDuplicatesStrategy(DuplicatesStrategy.EXCLUDE);
+            jar.getDestinationDirectory().convention(base.getLibsDirectory());
+            jar.getArchiveBaseName().convention(base.getArchivesName().map(name -> name + "-uber"));
+            jar.getArchiveVersion().convention(projectVersion(project));
+            // the first occurrence of a class wins, so the instrumented classes replace the original ones
+            jar.getApplicationClasspath().from(instrumentedClasses(instrumentTask, rife2Extension));
+            jar.getApplicationClasspath().from(javaPluginExtension.getSourceSets().getByName(SourceSet.MAIN_SOURCE_SET_NAME).getOutput());
+            jar.getApplicationClasspath().from(precompileTemplatesTask);
+            jar.getWebappDirectory().convention(project.getLayout().getProjectDirectory().dir(WEBAPP_SRCDIR));
+            jar.getFormat().convention(rife2Extension.getUberJarFormat());
+            jar.getStoredPatterns().convention(UberJar.DEFAULT_STORED_PATTERNS);
+            jar.getPreserveFileTimestamps().convention(false);
+            jar.getShrink().convention(rife2Extension.getShrinkUberJar());
+            jar.getKeepRules().convention(UberJar.DEFAULT_KEEP_RULES);
+            jar.getCompressionLevel().convention(Deflater.DEFAULT_COMPRESSION);
+            jar.getCompressionParallelism().convention(Runtime.getRuntime().availableProcessors());
+            // the nested format stores the dependency jars as-is, so the merged segment is only built for the flat format
+            jar.getDependencies().from(jar.getFormat().flatMap(format -> format == UberJarFormat.NESTED
+                ? runtimeClasspath.flatMap(Configuration::getElements)
+                : dependenciesTask.flatMap(UberJarDependencies::getArchiveFile).map(Set::<FileSystemLocation>of)));
+            jar.getExcludes().addAll(templateSourceExcludes(rife2Extension));
+            jar.getDetectedTemplateExcludes().addAll(detectedTemplateSourceExcludes(rife2Extension));
+            plugins.withId("application", unused -> jar.getMainClass().convention(rife2Extension.getUberMainClass()));
+        });
+    }
+
+    private static TaskProvider<Sync> registerThinDistributionTask(Project project,
+                                                     PluginContainer plugins,
+                                                     JavaPluginExtension javaPluginExtension,
+                                                     Rife2Extension rife2Extension,
+                                                     TaskContainer tasks,
+                                                     TaskProvider<PrecompileTemplates> precompileTemplatesTask,
+                                                     TaskProvider<InstrumentClasses> instrumentTask) {
+        var runtimeJars = project.files(project.getConfigurations().named(JavaPlugin.RUNTIME_CLASSPATH_CONFIGURATION_NAME)).filter(new IsFile());
+        var base = project.getExtensions().getByType(BasePluginExtension.class);
+        var thinJarTask = tasks.register("thinJar", Jar.class, jar -> {
+            jar.setGroup(RIFE2_GROUP);
+            jar.setDescription("Assembles the web application into a jar archive that references its dependencies in lib/.");
+            jar.getArchiveBaseName().convention(base.getArchivesName().map(name -> name + "-thin"));
+            jar.setPreserveFileTimestamps(false);
+            jar.setReproducibleFileOrder(true);
             jar.from(javaPluginExtension.getSourceSets().getByName(SourceSet.MAIN_SOURCE_SET_NAME).getOutput());
             jar.from(precompileTemplatesTask);
-            jar.into("webapp", spec -> spec.from(WEBAPP_SRCDIR));
-            var runtimeClasspath = project.getConfigurations().getByName(JavaPlugin.RUNTIME_CLASSPATH_CONFIGURATION_NAME);
-            jar.from(runtimeClasspath.getElements().map(e -> e.stream()
-                .filter(f -> f.getAsFile().getName().toLowerCase(Locale.ENGLISH).endsWith(".jar"))
-                .map(project::zipTree)
-                .toList()));
             excludeTemplateSourcesInClassPath(jar, rife2Extension);
-            plugins.withId("application", unused -> jar.manifest(manifest ->
-                manifest.getAttributes().put("Main-Class", rife2Extension.getUberMainClass().get()))
-            );
+            replaceInstrumentedClasses(jar, instrumentTask, rife2Extension);
+            // the distribution directory itself is on the classpath, so that the webapp/ resources can be found
+            // the same unique names as the jars get in the lib directory of the distribution
+            jar.getManifest().attributes(Map.of("Class-Path", runtimeJars.getElements().map(jars -> LibraryNames.of(jars.stream().map(FileSystemLocation::getAsFile).toList())
+                .values().stream()
+                .map(name -> "lib/" + name)
+                .collect(Collectors.joining(" ", "", jars.isEmpty() ? "./" : " ./")))));
+            plugins.withId("application", unused -> jar.getManifest().attributes(Map.of("Main-Class", rife2Extension.getUberMainClass())));
+        });
+        return tasks.register("thinDistribution", Sync.class, sync -> {
+            sync.setGroup(RIFE2_GROUP);
+            sync.setDescription("Assembles the web application jar, its dependencies in lib/ and the webapp/ files into a directory.");
+            sync.into(project.getLayout().getBuildDirectory().dir(DEFAULT_THIN_DISTRIBUTION_DIR));
+            sync.from(thinJarTask);
+            sync.from(runtimeJars, spec -> {
+                spec.into("lib");
+                spec.eachFile(new LibraryNames.Rename(runtimeJars));
+            });
+            sync.from(project.getLayout().getProjectDirectory().dir(WEBAPP_SRCDIR), spec -> spec.into("webapp"));
+        });
+    }
+
+    private static void registerOciImageTask(Project project,
+                                             PluginContainer plugins,
+                                             JavaPluginExtension javaPluginExtension,
+                                             Rife2Extension rife2Extension,
+                                             TaskContainer tasks,
+                                             TaskProvider<PrecompileTemplates> precompileTemplatesTask,
+                                             NamedDomainObjectProvider<Configuration> rife2CompilerClasspath) {
+        var base = project.getExtensions().getByType(BasePluginExtension.class);
+        var runtimeClasspath = project.getConfigurations().named(JavaPlugin.RUNTIME_CLASSPATH_CONFIGURATION_NAME);
+        // the template sources are only on the runtime classpath for development, the server dependencies are kept
+        var dependencies = project.files(runtimeClasspath)
+            .minus(project.files(rife2CompilerClasspath))
+            .minus(rife2Extension.getTemplateDirectories());
+        tasks.register("ociImage", OciImage.class, image -> {
+            image.setGroup(RIFE2_GROUP);
+            image.setDescription("Writes an OCI image archive of the web application, with separate layers for its dependencies, RIFE2, webapp files, templates and classes.");
+            image.getDependencies().from(dependencies);
+            image.getFrameworkClasspath().from(rife2CompilerClasspath);
+            image.getWebappDirectory().convention(project.getLayout().getProjectDirectory().dir(WEBAPP_SRCDIR));
+            image.getTemplateClasses().from(precompileTemplatesTask);
+            image.getApplicationClasses().from(javaPluginExtension.getSourceSets().getByName(SourceSet.MAIN_SOURCE_SET_NAME).getOutput());
+            image.getExcludes().addAll(templateSourceExcludes(rife2Extension));
+            image.getDetectedTemplateExcludes().addAll(detectedTemplateSourceExcludes(rife2Extension));
+            image.getJavaCommand().convention(OciImage.DEFAULT_JAVA_COMMAND);
+            image.getPorts().convention(Set.of(8080));
+            image.getArchitecture().convention("amd64");
+            image.getOs().convention("linux");
+            image.getImageName().convention(base.getArchivesName().zip(projectVersion(project).orElse("latest"), (name, version) -> name + ":" + version));
+            image.getArchiveFile().convention(project.getLayout().getBuildDirectory().file(DEFAULT_OCI_IMAGE_FILE));
+            image.getMainClass().convention(rife2Extension.getUberMainClass());
+        });
+    }
+
+    private static void registerClassLoadOrderTask(Project project,
+                                                   JavaPluginExtension javaPluginExtension,
+                                                   Rife2Extension rife2Extension,
+                                                   TaskContainer tasks,
+                                                   TaskProvider<Sync> thinDistributionTask,
+                                                   TaskProvider<UberJar> uberJarTask) {
+        var toolchains = project.getExtensions().getByType(JavaToolchainService.class);
+        var classLoadOrderTask = tasks.register("rife2ClassLoadOrder", ClassLoadOrder.class, task -> {
+            task.setGroup(RIFE2_GROUP);
+            task.setDescription("Records the order in which the web application loads its classes at startup, with a training run.");
+            task.getDistributionDirectory().fileProvider(thinDistributionTask.map(Sync::getDestinationDir));
+            task.getJarName().convention(tasks.named("thinJar", Jar.class).flatMap(Jar::getArchiveFileName));
+            task.getJavaLauncher().convention(toolchains.launcherFor(javaPluginExtension.getToolchain()));
+            task.getTrainingDuration().convention(Duration.ofSeconds(10));
+            task.getOrderFile().convention(project.getLayout().getBuildDirectory().file(DEFAULT_CLASS_LOAD_ORDER_FILE));
+        });
+        uberJarTask.configure(jar -> jar.getClassLoadOrder().convention(rife2Extension.getUberJarClassLoadOrder().flatMap(enabled ->
+            enabled ? classLoadOrderTask.flatMap(ClassLoadOrder::getOrderFile) : null)));
+    }
+
+    private static void registerCdsArchiveTask(Project project,
+                                               JavaPluginExtension javaPluginExtension,
+                                               TaskContainer tasks,
+                                               TaskProvider<UberJar> uberJarTask) {
+        var toolchains = project.getExtensions().getByType(JavaToolchainService.class);
+        tasks.register("rife2Cds", CdsArchive.class, task -> {
+            task.setGroup(RIFE2_GROUP);
+            task.setDescription("Creates a Class Data Sharing archive for the uber jar with a training run, together with a launcher script.");
+            task.getJarFile().convention(uberJarTask.flatMap(UberJar::getArchiveFile));
+            task.getJavaLauncher().convention(toolchains.launcherFor(javaPluginExtension.getToolchain()));
+            task.getTrainingDuration().convention(Duration.ofSeconds(10));
+            task.getOutputDirectory().convention(project.getLayout().getBuildDirectory().dir(DEFAULT_CDS_DIR));
+        });
+    }
+
+    private static void registerRuntimeTask(Project project,
+                                            JavaPluginExtension javaPluginExtension,
+                                            TaskContainer tasks) {
+        var toolchains = project.getExtensions().getByType(JavaToolchainService.class);
+        var runtimeJars = project.files(project.getConfigurations().named(JavaPlugin.RUNTIME_CLASSPATH_CONFIGURATION_NAME)).filter(new IsFile());
+        tasks.register("rife2Runtime", JlinkRuntime.class, task -> {
+            task.setGroup(RIFE2_GROUP);
+            task.setDescription("Creates a minimal Java runtime image with the JDK modules that the web application requires.");
+            task.getClasspath().from(javaPluginExtension.getSourceSets().getByName(SourceSet.MAIN_SOURCE_SET_NAME).getOutput().getClassesDirs());
+            task.getClasspath().from(runtimeJars);
+            task.getJavaLauncher().convention(toolchains.launcherFor(javaPluginExtension.getToolchain()));
+            task.getGenerateCdsArchive().convention(false);
+            task.getOutputDirectory().convention(project.getLayout().getBuildDirectory().dir(DEFAULT_RUNTIME_DIR));
+        });
+    }
+
+    // the version of a project isn't lazy, so it's only read from the project itself, when the value is needed
+    private static Provider<String> projectVersion(Project project) {
+        return project.getProviders().provider(() -> {
+            var version = project.getVersion().toString();
+            return Project.DEFAULT_VERSION.equals(version) ? null : version;
         });
     }
 
     private static void configureAgent(Project project,
                                        PluginContainer plugins,
                                        Rife2Extension rife2Extension,
-                                       Configuration rife2AgentClasspath) {
-        CommandLineArgumentProvider agentProvider = () -> {
-            if (Boolean.TRUE.equals(rife2Extension.getUseAgent().get())) {
-                return Collections.singleton("-javaagent:" + rife2AgentClasspath.getAsPath());
-            }
-            return Collections.emptyList();
-        };
+                                       NamedDomainObjectProvider<Configuration> rife2AgentClasspath) {
+        var agentProvider = new AgentArgumentProvider(project.files(rife2Extension.getUseAgent().map(useAgent ->
+            useAgent ? rife2AgentClasspath : List.of())));
         project.getTasks().named("test", Test.class, test -> test.getJvmArgumentProviders().add(agentProvider));
         plugins.withId("application", unused -> project.getTasks().named("run", JavaExec.class, run -> run.getArgumentProviders().add(agentProvider)));
     }
@@ -210,27 +445,34 @@ public class Rife2Plugin implements Plugin<Project> {
     private static Rife2Extension createRife2Extension(Project project) {
         var rife2 = project.getExtensions().create("rife2", Rife2Extension.class);
         rife2.getUseAgent().convention(false);
-        rife2.getUberMainClass().convention(project.getExtensions().getByType(JavaApplication.class).getMainClass()
-            .map(mainClass -> mainClass + "Uber"));
+        project.getPlugins().withId("application", unused -> rife2.getUberMainClass().convention(
+            project.getExtensions().getByType(JavaApplication.class).getMainClass().map(mainClass -> mainClass + "Uber")));
         DEFAULT_TEMPLATES_DIRS.stream().forEachOrdered(dir -> rife2.getTemplateDirectories().from(project.files(dir)));
         rife2.getIncludeServerDependencies().convention(true);
+        rife2.getDetectTemplateTypes().convention(false);
+        rife2.getTemplateCompilerIsolation().convention(TemplateCompilerIsolation.PROCESS);
+        rife2.getTemplateCompilerParallelism().convention(Runtime.getRuntime().availableProcessors());
+        rife2.getUberJarFormat().convention(UberJarFormat.FLAT);
+        rife2.getUberJarClassLoadOrder().convention(false);
+        rife2.getShrinkUberJar().convention(false);
+        rife2.getInstrumentClasses().convention(false);
         return rife2;
     }
 
-    private static Configuration createRife2CompilerClasspathConfiguration(ConfigurationContainer configurations,
-                                                                           Configuration rife2Configuration) {
-        return configurations.create("rife2CompilerClasspath", conf -> {
+    private static NamedDomainObjectProvider<Configuration> createRife2CompilerClasspathConfiguration(ConfigurationContainer configurations,
+                                                                                                 NamedDomainObjectProvider<Configuration> rife2Configuration) {
+        return configurations.register("rife2CompilerClasspath", conf -> {
             conf.setDescription("The RIFE2 compiler classpath");
             conf.setCanBeConsumed(false);
             conf.setCanBeResolved(true);
-            conf.extendsFrom(rife2Configuration);
+            conf.extendsFrom(rife2Configuration.get());
         });
     }
 
-    private static Configuration createRife2AgentConfiguration(ConfigurationContainer configurations,
-                                                               DependencyHandler dependencyHandler,
-                                                               Rife2Extension rife2Extension) {
-        return configurations.create("rife2Agent", conf -> {
+    private static NamedDomainObjectProvider<Configuration> createRife2AgentConfiguration(ConfigurationContainer configurations,
+                                                                                     DependencyHandler dependencyHandler,
+                                                                                     Rife2Extension rife2Extension) {
+        return configurations.register("rife2Agent", conf -> {
             conf.setDescription("The RIFE2 agent classpath");
             conf.setCanBeConsumed(false);
             conf.setCanBeResolved(true);
@@ -240,30 +482,53 @@ public class Rife2Plugin implements Plugin<Project> {
         });
     }
 
-    private static Configuration createRife2Configuration(ConfigurationContainer configurations,
-                                                          DependencyHandler dependencyHandler,
-                                                          Rife2Extension rife2Extension) {
-        var config = configurations.create("rife2", conf -> {
+    private static NamedDomainObjectProvider<Configuration> createRife2Configuration(ConfigurationContainer configurations,
+                                                                                DependencyHandler dependencyHandler,
+                                                                                Rife2Extension rife2Extension) {
+        return configurations.register("rife2", conf -> {
             conf.setDescription("The RIFE2 framework dependencies");
             conf.setCanBeConsumed(false);
             conf.setCanBeResolved(false);
+            conf.getDependencies().addLater(rife2Extension.getVersion()
+                .map(version -> dependencyHandler.create(DEPENDENCY_RIFE_PREFIX + version)));
         });
-        config.getDependencies().addLater(rife2Extension.getVersion()
-            .map(version -> dependencyHandler.create(DEPENDENCY_RIFE_PREFIX + version)));
-        return config;
     }
 
     private static TaskProvider<PrecompileTemplates> registerPrecompileTemplateTask(Project project,
-                                                                                    Configuration rife2CompilerClasspath,
+                                                                                    JavaPluginExtension javaPluginExtension,
+                                                                                    NamedDomainObjectProvider<Configuration> rife2CompilerClasspath,
                                                                                     Rife2Extension rife2Extension) {
-        return project.getTasks().register(PRECOMPILE_TEMPLATES_TASK_NAME, PrecompileTemplates.class, task -> {
+        var compilerService = project.getGradle().getSharedServices().registerIfAbsent(TemplateCompilerService.NAME, TemplateCompilerService.class,
+            spec -> spec.getMaxParallelUsages().set(TemplateCompilerPool.MAX_IDLE_COMPILERS));
+        var toolchains = project.getExtensions().getByType(JavaToolchainService.class);
+        var precompileTask = project.getTasks().register(PRECOMPILE_TEMPLATES_TASK_NAME, PrecompileTemplates.class, task -> {
             task.setGroup(RIFE2_GROUP);
             task.setDescription("Pre-compiles the templates.");
             task.getVerbose().convention(true);
             task.getClasspath().from(rife2CompilerClasspath);
+            task.getJavaLauncher().convention(toolchains.launcherFor(javaPluginExtension.getToolchain()));
             task.getTypes().convention(rife2Extension.getPrecompiledTemplateTypes());
+            task.getDetectTypes().convention(rife2Extension.getDetectTemplateTypes());
+            task.getIsolation().convention(rife2Extension.getTemplateCompilerIsolation());
+            task.getCompilerService().set(compilerService);
+            task.getMaxParallelism().convention(rife2Extension.getTemplateCompilerParallelism());
             task.getTemplatesDirectories().from(rife2Extension.getTemplateDirectories());
             task.getOutputDirectory().set(project.getLayout().getBuildDirectory().dir(DEFAULT_GENERATED_RIFE2_CLASSES_DIR));
+            task.getIncludeGraphFile().set(project.getLayout().getBuildDirectory().file(DEFAULT_TEMPLATE_INCLUDE_GRAPH_FILE));
         });
+        // only the tasks that compile inside the daemon take a usage of the shared compiler
+        project.afterEvaluate(unused -> precompileTask.configure(task -> {
+            if (task.getIsolation().getOrElse(TemplateCompilerIsolation.PROCESS) == TemplateCompilerIsolation.CLASSLOADER) {
+                task.usesService(compilerService);
+            }
+        }));
+        return precompileTask;
+    }
+
+    private static final class IsFile implements Spec<File> {
+        @Override
+        public boolean isSatisfiedBy(File file) {
+            return file.isFile();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.GradleException;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Compiles templates with the RIFE2 template factories of a classloader
+ * that has the RIFE2 compiler on its classpath.
+ * <p>
+ * The factories are called directly instead of through the command line of
+ * the RIFE2 {@code TemplateDeployer}, since that exits the JVM on invalid
+ * arguments, which would stop the Gradle daemon with the
+ * {@link TemplateCompilerIsolation#CLASSLOADER} isolation. It also only
+ * resolves the includes of a template within its own templates directory,
+ * while the factories resolve them in all the templates directories.
+ * <p>
+ * RIFE2 keeps its configuration and template factories in static state, so
+ * a compiler must only be used by one thread at a time.
+ */
+final class TemplateCompiler {
+    private final ClassLoader classLoader_;
+    private final Object templateConfig_;
+    private final Method setGenerationPath_;
+    private final Method setDefaultEncoding_;
+    private final Method setGenerateClasses_;
+    private final Method getFactory_;
+    private final Method setResourceFinder_;
+    private final Method setClassLoader_;
+    private final Method parse_;
+    private final Constructor<?> finderGroup_;
+    private final Method addFinder_;
+    private final Constructor<?> finderDirectories_;
+    private final Object classpathFinder_;
+
+    /**
+     * @param classLoader the classloader with the RIFE2 compiler
+     */
+    TemplateCompiler(ClassLoader classLoader) {
+        classLoader_ = classLoader;
+        try {
+            var config = Class.forName("rife.config.RifeConfig", true, classLoader);
+            templateConfig_ = config.getMethod("template").invoke(null);
+            var templateConfig = templateConfig_.getClass();
+            setGenerationPath_ = templateConfig.getMethod("setGenerationPath", String.class);
+            setDefaultEncoding_ = templateConfig.getMethod("setDefaultEncoding", String.class);
+            setGenerateClasses_ = templateConfig.getMethod("setGenerateClasses", boolean.class);
+
+            var finder = Class.forName("rife.resources.ResourceFinder", true, classLoader);
+            var factory = Class.forName("rife.template.TemplateFactory", true, classLoader);
+            getFactory_ = factory.getMethod("getFactory", String.class);
+            setResourceFinder_ = factory.getMethod("setResourceFinder", finder);
+            setClassLoader_ = factory.getDeclaredMethod("setClassLoader", Class.forName("rife.template.TemplateClassLoader", true, classLoader));
+            setClassLoader_.setAccessible(true);
+            parse_ = factory.getMethod("parse", String.class, String.class);
+
+            var group = Class.forName("rife.resources.ResourceFinderGroup", true, classLoader);
+            finderGroup_ = group.getConstructor();
+            addFinder_ = group.getMethod("add", finder);
+            finderDirectories_ = Class.forName("rife.resources.ResourceFinderDirectories", true, classLoader).getConstructor(File[].class);
+            classpathFinder_ = Class.forName("rife.resources.ResourceFinderClasspath", true, classLoader).getMethod("instance").invoke(null);
+        } catch (InvocationTargetException e) {
+            throw new GradleException("Unable to initialize the RIFE2 template compiler", e.getCause());
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new GradleException("Unable to find the RIFE2 template compiler on the compiler classpath", e);
+        }
+    }
+
+    /**
+     * Compiles the templates of a deployment.
+     *
+     * @param deployment      the templates to compile
+     * @param outputDirectory the directory of the template classes
+     * @param encoding        the encoding of the template files
+     * @param verbose         {@code true} when every compiled template should be reported
+     */
+    void compile(TemplateDeployment deployment, File outputDirectory, String encoding, boolean verbose) {
+        var thread = Thread.currentThread();
+        var contextClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(classLoader_);
+        try {
+            setGenerationPath_.invoke(templateConfig_, outputDirectory.getPath());
+            setDefaultEncoding_.invoke(templateConfig_, encoding);
+            setGenerateClasses_.invoke(templateConfig_, true);
+
+            var factory = getFactory_.invoke(null, deployment.type());
+            if (factory == null) {
+                throw new GradleException("Unknown RIFE2 template type '" + deployment.type() + "'");
+            }
+            var directories = deployment.directories().stream().map(File::new).toArray(File[]::new);
+            var finder = finderGroup_.newInstance();
+            addFinder_.invoke(finder, finderDirectories_.newInstance((Object) directories));
+            addFinder_.invoke(finder, classpathFinder_);
+            setResourceFinder_.invoke(factory, finder);
+            // a new template classloader, so that the templates of a previous compilation aren't reused
+            setClassLoader_.invoke(factory, (Object) null);
+
+            for (var path : deployment.templates()) {
+                if (verbose) {
+                    System.out.print(path + " ... ");
+                }
+                parse_.invoke(factory, TemplateIncludeGraph.templateName(deployment.type(), path), null);
+                if (verbose) {
+                    System.out.println("done.");
+                }
+            }
+        } catch (InvocationTargetException e) {
+            throw new GradleException("Unable to pre-compile the templates", e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new GradleException("Unable to call the RIFE2 template compiler", e);
+        } finally {
+            thread.setContextClassLoader(contextClassLoader);
+        }
+    }
+}
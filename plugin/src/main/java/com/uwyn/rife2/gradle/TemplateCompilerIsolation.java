@@ -0,0 +1,32 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+/**
+ * Specifies how the RIFE2 template compiler is isolated from the build.
+ */
+public enum TemplateCompilerIsolation {
+    /**
+     * The templates are compiled in a separate worker process.
+     */
+    PROCESS,
+    /**
+     * The templates are compiled inside the Gradle daemon, with the RIFE2
+     * compiler loaded in isolated classloaders that the daemon keeps warm
+     * across builds.
+     */
+    CLASSLOADER
+}
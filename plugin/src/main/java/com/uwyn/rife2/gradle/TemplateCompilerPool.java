@@ -0,0 +1,137 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.GradleException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the RIFE2 template compilers warm inside the Gradle daemon.
+ * <p>
+ * The pool is static, so it lives as long as the classloader of the plugin,
+ * which the daemon reuses across builds while the build script classpath
+ * doesn't change. This way the JIT-compiled template compiler of a previous
+ * build is reused, instead of starting cold for every build.
+ * <p>
+ * Each compiler has its own classloader, and with that its own copy of the
+ * global state of RIFE2, so different compilers can be used concurrently.
+ * The compilers are keyed by their classpath, including the size and the
+ * timestamp of every entry, so that a rebuilt RIFE2 snapshot gets a fresh
+ * compiler. Only the compilers of the most recently used classpaths are kept.
+ */
+final class TemplateCompilerPool {
+    static final int MAX_CLASSPATHS = 4;
+    static final int MAX_IDLE_COMPILERS = Runtime.getRuntime().availableProcessors();
+
+    // classpath key -> idle compilers, in least recently used order
+    private static final Map<String, Deque<PooledCompiler>> IDLE = new LinkedHashMap<>(16, 0.75f, true);
+
+    private TemplateCompilerPool() {
+    }
+
+    /**
+     * Runs an action with a compiler of the provided classpath, that isn't
+     * used by any other thread in the meantime.
+     *
+     * @param classpath the RIFE2 compiler classpath
+     * @param action    the action that uses the compiler
+     */
+    static void compile(List<File> classpath, Consumer<TemplateCompiler> action) {
+        var key = key(classpath);
+        var pooled = borrow(key);
+        if (pooled == null) {
+            pooled = create(classpath);
+        }
+        try {
+            action.accept(pooled.compiler());
+        } finally {
+            release(key, pooled);
+        }
+    }
+
+    private static synchronized PooledCompiler borrow(String key) {
+        var idle = IDLE.get(key);
+        return idle == null ? null : idle.pollFirst();
+    }
+
+    private static void release(String key, PooledCompiler pooled) {
+        var evicted = new ArrayDeque<PooledCompiler>();
+        synchronized (TemplateCompilerPool.class) {
+            var idle = IDLE.computeIfAbsent(key, k -> new ArrayDeque<>());
+            if (idle.size() < MAX_IDLE_COMPILERS) {
+                idle.addFirst(pooled);
+            } else {
+                evicted.add(pooled);
+            }
+            var classpaths = IDLE.entrySet().iterator();
+            while (IDLE.size() > MAX_CLASSPATHS) {
+                evicted.addAll(classpaths.next().getValue());
+                classpaths.remove();
+            }
+        }
+        for (var compiler : evicted) {
+            close(compiler);
+        }
+    }
+
+    private static PooledCompiler create(List<File> classpath) {
+        var urls = new URL[classpath.size()];
+        for (var i = 0; i < urls.length; i++) {
+            try {
+                urls[i] = classpath.get(i).toURI().toURL();
+            } catch (MalformedURLException e) {
+                throw new GradleException("Invalid RIFE2 compiler classpath entry " + classpath.get(i), e);
+            }
+        }
+        var classLoader = new URLClassLoader("rife2-template-compiler", urls, ClassLoader.getPlatformClassLoader());
+        try {
+            return new PooledCompiler(classLoader, new TemplateCompiler(classLoader));
+        } catch (RuntimeException e) {
+            close(new PooledCompiler(classLoader, null));
+            throw e;
+        }
+    }
+
+    private static void close(PooledCompiler pooled) {
+        try {
+            pooled.classLoader().close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String key(List<File> classpath) {
+        return classpath.stream()
+            .map(file -> file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified())
+            .collect(Collectors.joining(File.pathSeparator));
+    }
+
+    private record PooledCompiler(URLClassLoader classLoader, TemplateCompiler compiler) {
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Build service through which the {@link PrecompileTemplates} tasks of all the
+ * projects use the RIFE2 template compilers that are kept warm inside the
+ * Gradle daemon.
+ * <p>
+ * The compilers themselves are kept by the {@link TemplateCompilerPool},
+ * which outlives the build, so that the next builds of the daemon reuse them.
+ * The service limits how many tasks compile templates inside the daemon at
+ * the same time.
+ */
+public abstract class TemplateCompilerService implements BuildService<BuildServiceParameters.None> {
+    static final String NAME = "rife2TemplateCompiler";
+
+    /**
+     * Compiles templates with a compiler of the provided classpath.
+     *
+     * @param classpath       the RIFE2 compiler classpath
+     * @param deployments     the templates to compile
+     * @param outputDirectory the directory of the template classes
+     * @param encoding        the encoding of the template files
+     * @param verbose         {@code true} when every compiled template should be reported
+     */
+    public void compile(Collection<File> classpath, List<TemplateDeployment> deployments, File outputDirectory, String encoding, boolean verbose) {
+        TemplateCompilerPool.compile(List.copyOf(classpath), compiler -> {
+            for (var deployment : deployments) {
+                compiler.compile(deployment, outputDirectory, encoding, verbose);
+            }
+        });
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+/**
+ * Worker action that runs the RIFE2 template compiler for a batch of
+ * template deployments.
+ * <p>
+ * The action is either executed with the RIFE2 compiler classpath, or
+ * delegates to the shared {@link TemplateCompilerService}. In both cases
+ * the template compiler is looked up reflectively.
+ */
+public abstract class TemplateCompilerWorkAction implements WorkAction<TemplateCompilerWorkAction.Parameters> {
+    /**
+     * The parameters of a template compilation batch.
+     */
+    public interface Parameters extends WorkParameters {
+        ListProperty<TemplateDeployment> getDeployments();
+
+        DirectoryProperty getOutputDirectory();
+
+        Property<String> getEncoding();
+
+        Property<Boolean> getVerbose();
+
+        /**
+         * The shared template compiler to use. When absent, the template
+         * compiler is loaded by the classloader of this action.
+         */
+        Property<TemplateCompilerService> getCompilerService();
+
+        ConfigurableFileCollection getClasspath();
+    }
+
+    @Override
+    public void execute() {
+        var parameters = getParameters();
+        var output = parameters.getOutputDirectory().get().getAsFile();
+        var encoding = parameters.getEncoding().get();
+        var verbose = parameters.getVerbose().get();
+        var deployments = parameters.getDeployments().get();
+        if (parameters.getCompilerService().isPresent()) {
+            parameters.getCompilerService().get().compile(parameters.getClasspath().getFiles(), deployments, output, encoding, verbose);
+        } else {
+            var compiler = new TemplateCompiler(getClass().getClassLoader());
+            for (var deployment : deployments) {
+                compiler.compile(deployment, output, encoding, verbose);
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Describes a single compilation of the RIFE2 template compiler: the
+ * templates of one type, with the directories that they and the templates
+ * they include are found in.
+ */
+public final class TemplateDeployment implements Serializable {
+    @Serial private static final long serialVersionUID = 4721596043917826459L;
+
+    private final String type_;
+    private final List<String> directories_;
+    private final List<String> templates_;
+
+    /**
+     * @param type        the template type
+     * @param directories the templates directories
+     * @param templates   the paths of the templates to compile, relative to the templates directories
+     */
+    TemplateDeployment(String type, List<String> directories, Collection<String> templates) {
+        type_ = type;
+        directories_ = List.copyOf(directories);
+        templates_ = List.copyOf(templates);
+    }
+
+    String type() {
+        return type_;
+    }
+
+    List<String> directories() {
+        return directories_;
+    }
+
+    List<String> templates() {
+        return templates_;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps track of which templates include which other templates, so that
+ * the dependents of a changed template can be recompiled.
+ * <p>
+ * Templates are identified by their type and their name, which is the
+ * path relative to the templates directory without extension and with
+ * dots as separators, like RIFE2 uses for include tags. Includes are
+ * resolved within the same template type.
+ */
+class TemplateIncludeGraph {
+    // hyphens are only allowed within a name segment, so that the closing "/-->" of an HTML comment isn't part of the name
+    private static final String NAME_SEGMENT = "[\\w.]+(?:-[\\w.]+)*";
+    private static final Pattern INCLUDE_TAG = Pattern.compile(
+        "(?:<!--|\\{\\{|<r:)\\s*i\\s+(?:name\\s*=\\s*)?['\"]?(" + NAME_SEGMENT + "(?:/" + NAME_SEGMENT + ")*)['\"]?\\s*/?\\s*(?:-->|}}|>)");
+
+    // type -> template name -> names of the included templates
+    private final SortedMap<String, SortedMap<String, SortedSet<String>>> includes_ = new TreeMap<>();
+
+    /**
+     * Loads a graph that was previously stored.
+     *
+     * @param file the file the graph was stored in
+     * @return the loaded graph; or {@code null} when the file doesn't exist
+     */
+    static TemplateIncludeGraph load(Path file) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        var graph = new TemplateIncludeGraph();
+        try {
+            for (var line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                var parts = line.split("\t");
+                if (parts.length < 2) {
+                    continue;
+                }
+                var included = new TreeSet<String>();
+                if (parts.length > 2 && !parts[2].isEmpty()) {
+                    included.addAll(List.of(parts[2].split(" ")));
+                }
+                graph.update(parts[0], parts[1], included);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return graph;
+    }
+
+    /**
+     * Stores this graph so that it can be loaded by the next build.
+     *
+     * @param file the file to store the graph in
+     */
+    void store(Path file) {
+        var lines = new ArrayList<String>();
+        includes_.forEach((type, templates) -> templates.forEach((name, included) ->
+            lines.add(type + "\t" + name + "\t" + String.join(" ", included))));
+        try {
+            Files.createDirectories(file.getParent());
+            Files.write(file, lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Converts the relative path of a template file to its template name.
+     *
+     * @param type the template type, which is also the file extension
+     * @param path the path relative to the templates directory, with {@code /} separators
+     * @return the template name
+     */
+    static String templateName(String type, String path) {
+        return path.substring(0, path.length() - type.length() - 1).replace('/', '.');
+    }
+
+    /**
+     * Converts a template name to the path of its file relative to the
+     * templates directory.
+     *
+     * @param type the template type, which is also the file extension
+     * @param name the template name
+     * @return the relative path, with {@code /} separators
+     */
+    static String templatePath(String type, String name) {
+        return name.replace('.', '/') + "." + type;
+    }
+
+    /**
+     * Finds the names of the templates that are included by a template.
+     *
+     * @param content the content of the template
+     * @return the names of the included templates
+     */
+    static SortedSet<String> parseIncludes(CharSequence content) {
+        var included = new TreeSet<String>();
+        var matcher = INCLUDE_TAG.matcher(content);
+        while (matcher.find()) {
+            included.add(matcher.group(1).replace('/', '.'));
+        }
+        return included;
+    }
+
+    void update(String type, String name, SortedSet<String> included) {
+        includes_.computeIfAbsent(type, t -> new TreeMap<>()).put(name, included);
+    }
+
+    void remove(String type, String name) {
+        var templates = includes_.get(type);
+        if (templates != null) {
+            templates.remove(name);
+        }
+    }
+
+    /**
+     * Finds all the templates that directly or transitively include one
+     * of the provided templates.
+     *
+     * @param type  the template type
+     * @param names the names of the changed templates
+     * @return the names of the dependent templates, without the changed templates themselves
+     */
+    SortedSet<String> dependents(String type, Set<String> names) {
+        var templates = includes_.getOrDefault(type, new TreeMap<>());
+        var dependents = new TreeSet<String>();
+        var pending = new ArrayDeque<>(names);
+        while (!pending.isEmpty()) {
+            var changed = pending.pop();
+            templates.forEach((name, included) -> {
+                if (included.contains(changed) && !names.contains(name) && dependents.add(name)) {
+                    pending.push(name);
+                }
+            });
+        }
+        return dependents;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.specs.Spec;
+import org.gradle.api.tasks.util.PatternSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Matches the files of detected template types that contain RIFE2 template
+ * markup, so that plain resources with the same extension, like JSON data or
+ * SVG images, aren't taken for templates.
+ */
+class TemplateMarkupSpec implements Spec<FileTreeElement> {
+    // the opening or closing tag of a value, a block, an include or a comment, in any of the RIFE2 syntaxes
+    private static final Pattern MARKUP_TAG = Pattern.compile(
+        "(?:<!--|\\{\\{|</?r:)\\s*/?\\s*(?:v|b|bv|ba|i|c)(?=[\\s/>}-])");
+
+    private final List<String> patterns_;
+    private final boolean directories_;
+    private transient Spec<FileTreeElement> spec_;
+
+    /**
+     * @param patterns    the patterns of the files to inspect
+     * @param directories whether directories are matched, so that they are
+     *                    traversed when the spec is used as include
+     */
+    TemplateMarkupSpec(Collection<String> patterns, boolean directories) {
+        patterns_ = new ArrayList<>(patterns);
+        directories_ = directories;
+    }
+
+    @Override
+    public boolean isSatisfiedBy(FileTreeElement element) {
+        if (element.isDirectory()) {
+            return directories_;
+        }
+        if (patterns_.isEmpty()) {
+            return false;
+        }
+        if (spec_ == null) {
+            spec_ = new PatternSet().include(patterns_).getAsSpec();
+        }
+        return spec_.isSatisfiedBy(element) && containsMarkup(element.getFile());
+    }
+
+    /**
+     * Checks whether a file contains RIFE2 template markup.
+     *
+     * @param file the file to inspect
+     * @return {@code true} when the file contains template tags; or
+     * {@code false} otherwise
+     */
+    static boolean containsMarkup(File file) {
+        try {
+            // the tags are plain ASCII, so every encoding of the templates can be read as Latin-1
+            return MARKUP_TAG.matcher(Files.readString(file.toPath(), StandardCharsets.ISO_8859_1)).find();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.specs.Spec;
+import org.gradle.api.tasks.util.PatternSet;
+
+import java.util.List;
+
+/**
+ * Matches the template source files, so that they can be excluded from an
+ * archive. The exclude patterns are only evaluated when the archive is
+ * created. The files that match the patterns of the detected template types
+ * are only excluded when they contain template markup.
+ */
+class TemplateSourcesSpec implements Spec<FileTreeElement> {
+    private final Provider<List<String>> excludes_;
+    private final Provider<List<String>> detectedExcludes_;
+    private transient Spec<FileTreeElement> spec_;
+
+    TemplateSourcesSpec(Provider<List<String>> excludes, Provider<List<String>> detectedExcludes) {
+        excludes_ = excludes;
+        detectedExcludes_ = detectedExcludes;
+    }
+
+    @Override
+    public boolean isSatisfiedBy(FileTreeElement element) {
+        // directories partially match the patterns, but only the template files themselves are excluded
+        if (element.isDirectory()) {
+            return false;
+        }
+        if (spec_ == null) {
+            spec_ = new PatternSet()
+                .include(excludes_.get())
+                .include(new TemplateMarkupSpec(detectedExcludes_.get(), false))
+                .getAsSpec();
+        }
+        return spec_.isSatisfiedBy(element);
+    }
+}
@@ -17,6 +17,7 @@ package com.uwyn.rife2.gradle;
 
 import java.io.Serial;
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * Allows template types to be specified for pre-compilation.
@@ -49,6 +50,8 @@ public class TemplateType implements Serializable {
      */
     public static TemplateType SQL = new TemplateType("sql");
 
+    private static final List<TemplateType> VALUES = List.of(HTML, JSON, SVG, XML, TXT, SQL);
+
     private final String identifier_;
 
     /**
@@ -67,4 +70,13 @@ public class TemplateType implements Serializable {
     public String identifier() {
         return identifier_;
     }
-}
\ No newline at end of file
+
+    /**
+     * Retrieves the template types that are built into RIFE2.
+     *
+     * @return the list of built-in template types
+     */
+    public static List<TemplateType> values() {
+        return VALUES;
+    }
+}
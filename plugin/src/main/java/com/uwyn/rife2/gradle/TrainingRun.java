@@ -0,0 +1,129 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a web application for a limited time with a training workload, so
+ * that the JVM can record what the application does at startup.
+ * <p>
+ * After the application was started, the training URLs are requested in
+ * order, each of them being retried until the application answers. The
+ * application is then stopped gracefully, which lets the JVM write the
+ * files that it records at exit.
+ */
+final class TrainingRun {
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(250);
+    private static final Duration STOP_TIMEOUT = Duration.ofSeconds(60);
+
+    private TrainingRun() {
+    }
+
+    /**
+     * Runs the training.
+     *
+     * @param logger           the logger of the task
+     * @param command          the command that starts the application
+     * @param workingDirectory the working directory of the application
+     * @param logFile          the file that receives the output of the application
+     * @param urls             the URLs to request once the application has started
+     * @param duration         the maximum duration of the training; when there are no
+     *                         training URLs, the application runs for this whole duration
+     *                         unless it exits by itself
+     */
+    static void run(Logger logger, List<String> command, File workingDirectory, File logFile, List<String> urls, Duration duration) {
+        logger.info("Starting the training run: {}", command);
+        Process process;
+        try {
+            process = new ProcessBuilder(command)
+                .directory(workingDirectory)
+                .redirectErrorStream(true)
+                .redirectOutput(logFile)
+                .start();
+        } catch (IOException e) {
+            throw new GradleException("Couldn't start the training run", e);
+        }
+
+        try {
+            var deadline = Instant.now().plus(duration);
+            for (var url : urls) {
+                request(process, url, deadline, logFile);
+            }
+            if (urls.isEmpty()) {
+                process.waitFor(Math.max(0, Duration.between(Instant.now(), deadline).toMillis()), TimeUnit.MILLISECONDS);
+            }
+            if (process.isAlive()) {
+                // this sends SIGTERM, so that the JVM runs its exit actions
+                process.destroy();
+            }
+            if (!process.waitFor(STOP_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly();
+                throw new GradleException("The training run didn't stop, see " + logFile);
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted during the training run", e);
+        }
+        logger.info("The training run exited with {}", process.exitValue());
+    }
+
+    private static void request(Process process, String url, Instant deadline, File logFile) throws InterruptedException {
+        URL location;
+        try {
+            location = URI.create(url).toURL();
+        } catch (IllegalArgumentException | IOException e) {
+            throw new GradleException("Invalid training URL " + url, e);
+        }
+        while (true) {
+            if (!process.isAlive()) {
+                throw new GradleException("The application exited before the training URL " + url + " could be requested, see " + logFile + ":\n" + tail(logFile));
+            }
+            try (InputStream in = location.openStream()) {
+                in.transferTo(OutputStream.nullOutputStream());
+                return;
+            } catch (IOException e) {
+                if (Instant.now().isAfter(deadline)) {
+                    throw new GradleException("The training URL " + url + " couldn't be requested, see " + logFile, e);
+                }
+                Thread.sleep(POLL_INTERVAL.toMillis());
+            }
+        }
+    }
+
+    private static String tail(File logFile) {
+        try {
+            var lines = Files.readAllLines(logFile.toPath());
+            return String.join("\n", lines.subList(Math.max(0, lines.size() - 20), lines.size()));
+        } catch (IOException e) {
+            return "";
+        }
+    }
+}
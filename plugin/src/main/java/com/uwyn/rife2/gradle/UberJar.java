@@ -0,0 +1,640 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import com.uwyn.rife2.gradle.launcher.NestedJarLauncher;
+import com.uwyn.rife2.gradle.launcher.NestedUrlStreamHandlerProvider;
+import com.uwyn.rife2.gradle.launcher.UberJarLayout;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileVisitDetails;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.provider.SetProperty;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.IgnoreEmptyDirectories;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.util.PatternFilterable;
+import org.gradle.api.tasks.util.PatternSet;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.net.URISyntaxException;
+import java.net.spi.URLStreamHandlerProvider;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+
+/**
+ * Gradle task to assemble a RIFE2 web application and all its dependencies
+ * into a single jar archive.
+ * <p>
+ * The entries of the dependency jars are streamed directly into the uber jar,
+ * without extracting the jars and without compressing their entries again.
+ * When several entries have the same name, the first one wins: application
+ * classes and resources come first, then the web application files, and then
+ * the dependencies in classpath order.
+ * <p>
+ * The dependencies are usually a single segment that was merged beforehand
+ * by {@link UberJarDependencies}, so that a change to the application only
+ * requires the small application part to be assembled again.
+ * <p>
+ * In the {@link UberJarFormat#NESTED nested} format, the dependency jars are
+ * stored as-is under {@code lib/} instead, and the uber jar is launched
+ * through {@link NestedJarLauncher}.
+ * <p>
+ * The application and web application files are compressed concurrently and
+ * then written in order. Files that match the {@link #getStoredPatterns()
+ * stored patterns}, like the pre-compiled templates and already-compressed
+ * assets, are stored without compression, which also avoids inflating them
+ * when they're loaded.
+ * <p>
+ * Unless {@link #getPreserveFileTimestamps() file timestamps are preserved},
+ * the uber jar is reproducible: the files of each directory are written in
+ * sorted order, all entries get the same timestamp, and the manifest only
+ * contains attributes that are derived from the inputs.
+ * <p>
+ * When a {@link #getClassLoadOrder() class load order} is provided, the
+ * classes are written first in the order they were loaded during a training
+ * run, so that the startup reads the uber jar mostly sequentially.
+ * <p>
+ * When {@link #getShrink() shrinking} is enabled, the classes that aren't
+ * reachable from the main class, the application classes, the service
+ * providers and the {@link #getKeepRules() kept classes} are left out.
+ */
+@CacheableTask
+public abstract class UberJar extends DefaultTask {
+    private static final String LAUNCHER_PACKAGE = NestedJarLauncher.class.getPackageName().replace('.', '/') + "/";
+
+    /**
+     * The files that are stored without compression by default: the
+     * pre-compiled templates and file types that are already compressed.
+     */
+    static final Set<String> DEFAULT_STORED_PATTERNS = Set.of(
+        "rife/template/**",
+        "**/*.png", "**/*.jpg", "**/*.jpeg", "**/*.gif", "**/*.webp", "**/*.ico",
+        "**/*.woff", "**/*.woff2", "**/*.gz", "**/*.br", "**/*.zip", "**/*.jar",
+        "**/*.mp3", "**/*.mp4", "**/*.pdf");
+
+    /**
+     * The classes that are kept by default when shrinking: RIFE2 itself,
+     * which loads many classes reflectively, and the pre-compiled templates,
+     * which are loaded by name.
+     */
+    static final Set<String> DEFAULT_KEEP_RULES = Set.of("rife/**");
+    private static final String SERVICES_DIRECTORY = "META-INF/services/";
+
+    public UberJar() {
+        // an output property, so that the tasks that use the uber jar also depend on this task
+        getArchiveFile().convention(getDestinationDirectory().file(getArchiveBaseName().map(name -> {
+            var version = getArchiveVersion().getOrNull();
+            return (version == null || version.isEmpty() ? name : name + "-" + version) + ".jar";
+        })));
+    }
+
+    /**
+     * The class directories and resources of the web application, including
+     * the pre-compiled templates.
+     *
+     * @return the application classpath
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getApplicationClasspath();
+
+    /**
+     * The directory with the web application files, which are stored
+     * under {@code webapp/} in the uber jar.
+     *
+     * @return the web application directory
+     */
+    @InputFiles
+    @Optional
+    @IgnoreEmptyDirectories
+    @PathSensitive(PathSensitivity.RELATIVE)
+    public abstract DirectoryProperty getWebappDirectory();
+
+    /**
+     * The dependency jars of the web application, or the segment with the
+     * merged dependencies in the {@link UberJarFormat#FLAT flat} format.
+     *
+     * @return the dependency jars
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getDependencies();
+
+    /**
+     * Patterns of application classpath files that shouldn't be included
+     * in the uber jar.
+     *
+     * @return the exclude patterns
+     */
+    @Input
+    public abstract SetProperty<String> getExcludes();
+
+    /**
+     * Patterns of the files of detected template types, that are only left
+     * out when they contain RIFE2 template markup.
+     *
+     * @return the exclude patterns of the detected template types
+     */
+    @Input
+    public abstract SetProperty<String> getDetectedTemplateExcludes();
+
+    /**
+     * The file with the jar entry names of classes in the order they're loaded
+     * at startup, as recorded by {@link ClassLoadOrder}. These classes are written
+     * first, and each pre-compiled template class is directly followed by its
+     * nested classes. With the {@link UberJarFormat#NESTED nested} format, only
+     * the application classes are ordered.
+     *
+     * @return the class load order file
+     */
+    @InputFile
+    @Optional
+    @PathSensitive(PathSensitivity.NONE)
+    public abstract RegularFileProperty getClassLoadOrder();
+
+    /**
+     * Specifies whether the classes that aren't reachable should be left out
+     * of the uber jar. Only applies to the {@link UberJarFormat#FLAT flat}
+     * format. Defaults to {@code false}.
+     *
+     * @return {@code true} when the uber jar is shrunk;
+     * {@code false} otherwise
+     */
+    @Input
+    public abstract Property<Boolean> getShrink();
+
+    /**
+     * Patterns of class entries that are always kept when shrinking, for instance
+     * classes that are only loaded reflectively by a computed name, like
+     * {@code org/eclipse/jetty/util/**}. Defaults to {@link #DEFAULT_KEEP_RULES}.
+     *
+     * @return the keep rules
+     */
+    @Input
+    public abstract SetProperty<String> getKeepRules();
+
+    /**
+     * Patterns of application and web application files that are stored
+     * without compression. Defaults to {@link #DEFAULT_STORED_PATTERNS}.
+     *
+     * @return the stored file patterns
+     */
+    @Input
+    public abstract SetProperty<String> getStoredPatterns();
+
+    /**
+     * Specifies whether the entries keep the timestamps of their files.
+     * Defaults to {@code false}, which makes the uber jar reproducible.
+     *
+     * @return {@code true} when file timestamps are preserved;
+     * {@code false} otherwise
+     */
+    @Input
+    public abstract Property<Boolean> getPreserveFileTimestamps();
+
+    /**
+     * The deflate level of the compressed files, from {@code 0} to {@code 9},
+     * or {@code -1} for the default level.
+     *
+     * @return the compression level
+     */
+    @Input
+    public abstract Property<Integer> getCompressionLevel();
+
+    /**
+     * The maximum number of threads that compress files concurrently.
+     * Defaults to the number of available processors.
+     *
+     * @return the compression parallelism
+     */
+    @Internal
+    public abstract Property<Integer> getCompressionParallelism();
+
+    /**
+     * How the dependencies are stored in the uber jar.
+     *
+     * @return the format of the uber jar
+     */
+    @Input
+    public abstract Property<UberJarFormat> getFormat();
+
+    /**
+     * The main class that is written to the manifest of the uber jar.
+     *
+     * @return the fully qualified name of the main class
+     */
+    @Input
+    @Optional
+    public abstract Property<String> getMainClass();
+
+    /**
+     * The directory where the uber jar is created.
+     *
+     * @return the destination directory
+     */
+    @Internal
+    public abstract DirectoryProperty getDestinationDirectory();
+
+    /**
+     * The base name of the uber jar.
+     *
+     * @return the archive base name
+     */
+    @Internal
+    public abstract Property<String> getArchiveBaseName();
+
+    /**
+     * The version that is appended to the name of the uber jar.
+     *
+     * @return the archive version
+     */
+    @Internal
+    public abstract Property<String> getArchiveVersion();
+
+    /**
+     * The uber jar file. Defaults to a file in the {@link #getDestinationDirectory() destination directory}
+     * that is named after the {@link #getArchiveBaseName() base name} and the
+     * {@link #getArchiveVersion() version}.
+     *
+     * @return the uber jar file
+     */
+    @OutputFile
+    public abstract RegularFileProperty getArchiveFile();
+
+    @Inject
+    protected abstract ObjectFactory getObjects();
+
+    /**
+     * Assembles the uber jar.
+     *
+     * @throws IOException when the uber jar couldn't be written
+     */
+    @TaskAction
+    public void assemble() throws IOException {
+        var file = getArchiveFile().get().getAsFile();
+        var nested = getFormat().get() == UberJarFormat.NESTED;
+        var libs = nested ? nestedLibs() : Map.<String, File>of();
+        var executor = Executors.newFixedThreadPool(Math.max(1, getCompressionParallelism().get()));
+        try (var writer = new UberJarWriter(file, getPreserveFileTimestamps().get())) {
+            if (nested) {
+                writeNestedManifest(writer, libs.keySet());
+                writeLauncher(writer);
+            } else {
+                writer.writeManifest(getMainClass().getOrNull());
+            }
+            if (getShrink().get()) {
+                if (nested) {
+                    getLogger().warn("The nested uber jar format can't be shrunk, all the classes are kept.");
+                } else {
+                    writer.skip(unreachableClasses());
+                }
+            }
+            if (getClassLoadOrder().isPresent()) {
+                writeOrderedEntries(writer, nested);
+            }
+            for (var entry : getApplicationClasspath()) {
+                if (entry.isDirectory()) {
+                    writeDirectory(writer, executor, entry, "");
+                } else if (isJar(entry)) {
+                    writer.copyEntries(entry);
+                }
+            }
+            if (getWebappDirectory().isPresent() && getWebappDirectory().get().getAsFile().isDirectory()) {
+                writeDirectory(writer, executor, getWebappDirectory().get().getAsFile(), "webapp/");
+            }
+            if (nested) {
+                for (var lib : libs.entrySet()) {
+                    writer.writeStoredFile(lib.getKey(), lib.getValue());
+                }
+            } else {
+                for (var dependency : getDependencies()) {
+                    if (isJar(dependency)) {
+                        writer.copyEntries(dependency);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Determines the classes of the application classpath and the dependencies
+     * that aren't reachable, taking the first class for each entry name.
+     */
+    private Set<String> unreachableClasses() throws IOException {
+        var classes = new HashMap<String, UberJarShrinker.ClassBytes>();
+        var services = new ArrayList<UberJarShrinker.ClassBytes>();
+        var roots = new ArrayList<String>();
+        if (getMainClass().isPresent()) {
+            roots.add(getMainClass().get().replace('.', '/') + ".class");
+        }
+        for (var entry : getApplicationClasspath()) {
+            if (entry.isDirectory()) {
+                getObjects().fileTree().from(entry)
+                    .matching(this::excludeTemplateSources)
+                    .visit(details -> {
+                        if (details.isDirectory()) {
+                            return;
+                        }
+                        var name = details.getRelativePath().getPathString();
+                        var file = details.getFile();
+                        if (name.endsWith(".class") && classes.putIfAbsent(name, () -> Files.readAllBytes(file.toPath())) == null) {
+                            roots.add(name);
+                        } else if (name.startsWith(SERVICES_DIRECTORY)) {
+                            services.add(() -> Files.readAllBytes(file.toPath()));
+                        }
+                    });
+            }
+        }
+
+        var archives = new ArrayList<ZipFile>();
+        try {
+            for (var dependency : getDependencies()) {
+                if (!isJar(dependency)) {
+                    continue;
+                }
+                var archive = new ZipFile(dependency);
+                archives.add(archive);
+                for (var entry : Collections.list(archive.getEntries())) {
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    var name = entry.getName();
+                    UberJarShrinker.ClassBytes bytes = () -> {
+                        try (var in = archive.getInputStream(entry)) {
+                            return in.readAllBytes();
+                        }
+                    };
+                    if (name.endsWith(".class")) {
+                        classes.putIfAbsent(name, bytes);
+                    } else if (name.startsWith(SERVICES_DIRECTORY)) {
+                        services.add(bytes);
+                    }
+                }
+            }
+
+            var keep = UberJarShrinker.patterns(getKeepRules().get());
+            classes.keySet().stream().filter(keep).forEach(roots::add);
+            for (var service : services) {
+                for (var line : new String(service.read(), StandardCharsets.UTF_8).split("\\R")) {
+                    var provider = line.replaceFirst("#.*", "").trim();
+                    if (!provider.isEmpty()) {
+                        roots.add(provider.replace('.', '/') + ".class");
+                    }
+                }
+            }
+
+            var reachable = new UberJarShrinker(classes).reachable(roots);
+            var unreachable = classes.keySet().stream()
+                .filter(name -> !reachable.contains(name))
+                .filter(name -> !name.startsWith("META-INF/") && !name.endsWith("module-info.class"))
+                .collect(Collectors.toSet());
+            getLogger().info("Shrinking leaves out {} of {} classes", unreachable.size(), classes.size());
+            return unreachable;
+        } finally {
+            for (var archive : archives) {
+                archive.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the classes of the class load order, taking each class from the
+     * application classpath or the first dependency jar that contains it.
+     */
+    private void writeOrderedEntries(UberJarWriter writer, boolean nested) throws IOException {
+        var stored = new PatternSet().include(getStoredPatterns().get()).getAsSpec();
+        var level = getCompressionLevel().get();
+        var classes = new HashMap<String, FileVisitDetails>();
+        for (var entry : getApplicationClasspath()) {
+            if (entry.isDirectory()) {
+                getObjects().fileTree().from(entry)
+                    .matching(this::excludeTemplateSources)
+                    .visit(details -> {
+                        if (!details.isDirectory()) {
+                            classes.putIfAbsent(details.getRelativePath().getPathString(), details);
+                        }
+                    });
+            }
+        }
+        var archives = new ArrayList<ZipFile>();
+        try {
+            if (!nested) {
+                for (var dependency : getDependencies()) {
+                    if (isJar(dependency)) {
+                        archives.add(new ZipFile(dependency));
+                    }
+                }
+            }
+            for (var name : groupTemplateClasses(Files.readAllLines(getClassLoadOrder().get().getAsFile().toPath()), classes.keySet())) {
+                var details = classes.get(name);
+                if (details != null) {
+                    writer.writePrepared(UberJarWriter.prepare(name, details.getFile(), stored.isSatisfiedBy(details), level));
+                    continue;
+                }
+                for (var archive : archives) {
+                    var entry = archive.getEntry(name);
+                    if (entry != null) {
+                        writer.copyEntry(archive, entry);
+                        break;
+                    }
+                }
+            }
+        } finally {
+            for (var archive : archives) {
+                archive.close();
+            }
+        }
+    }
+
+    /**
+     * Adds the nested classes of each pre-compiled template class right after it.
+     */
+    private static Collection<String> groupTemplateClasses(List<String> order, Set<String> names) {
+        var grouped = new LinkedHashSet<String>();
+        for (var name : order) {
+            if (name.isBlank()) {
+                continue;
+            }
+            grouped.add(name);
+            if (name.startsWith(PrecompileTemplates.TEMPLATE_CLASSES_PACKAGE + "/") && !name.contains("$")) {
+                var prefix = name.substring(0, name.length() - ".class".length()) + "$";
+                names.stream()
+                    .filter(candidate -> candidate.startsWith(prefix))
+                    .sorted()
+                    .forEach(grouped::add);
+            }
+        }
+        return grouped;
+    }
+
+    /**
+     * Determines the entry names of the nested dependency jars, in classpath
+     * order. Jars with the same file name are made unique with a numeric prefix.
+     */
+    private Map<String, File> nestedLibs() {
+        var libs = new LinkedHashMap<String, File>();
+        LibraryNames.of(getDependencies()).forEach((dependency, name) -> libs.put(UberJarLayout.LIB_DIRECTORY + name, dependency));
+        return libs;
+    }
+
+    private void writeNestedManifest(UberJarWriter writer, Collection<String> libs) throws IOException {
+        var attributes = new LinkedHashMap<String, String>();
+        if (getMainClass().isPresent()) {
+            attributes.put(UberJarLayout.MAIN_CLASS_ATTRIBUTE, getMainClass().get());
+        }
+        attributes.put(UberJarLayout.CLASS_PATH_ATTRIBUTE, String.join(" ", libs));
+        writer.writeManifest(NestedJarLauncher.class.getName(), attributes);
+    }
+
+    private static void writeLauncher(UberJarWriter writer) throws IOException {
+        for (var launcherClass : launcherClasses().entrySet()) {
+            writer.writeBytes(launcherClass.getKey(), launcherClass.getValue(), System.currentTimeMillis());
+        }
+        // makes the URLs of the nested resources known to the whole JVM
+        writer.writeBytes(SERVICES_DIRECTORY + URLStreamHandlerProvider.class.getName(),
+            (NestedUrlStreamHandlerProvider.class.getName() + "\n").getBytes(StandardCharsets.UTF_8), System.currentTimeMillis());
+    }
+
+    /**
+     * Reads all the classes of the launcher package from the plugin's own
+     * code source, which is either a jar or a classes directory.
+     *
+     * @return the class file contents by entry name
+     */
+    static SortedMap<String, byte[]> launcherClasses() throws IOException {
+        var classes = new TreeMap<String, byte[]>();
+        File location;
+        try {
+            location = new File(NestedJarLauncher.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new GradleException("Unable to locate the launcher classes", e);
+        }
+        if (location.isDirectory()) {
+            var root = location.toPath();
+            var directory = root.resolve(LAUNCHER_PACKAGE);
+            try (var files = Files.walk(directory)) {
+                for (var file : files.filter(file -> file.toString().endsWith(".class")).toList()) {
+                    classes.put(root.relativize(file).toString().replace(File.separatorChar, '/'), Files.readAllBytes(file));
+                }
+            }
+        } else {
+            try (var jar = new JarFile(location)) {
+                for (var entry : Collections.list(jar.entries())) {
+                    if (entry.getName().startsWith(LAUNCHER_PACKAGE) && entry.getName().endsWith(".class")) {
+                        try (var in = jar.getInputStream(entry)) {
+                            classes.put(entry.getName(), in.readAllBytes());
+                        }
+                    }
+                }
+            }
+        }
+        if (!classes.containsKey(LAUNCHER_PACKAGE + NestedJarLauncher.class.getSimpleName() + ".class")) {
+            throw new GradleException("Unable to find the launcher classes in " + location);
+        }
+        return classes;
+    }
+
+    /**
+     * Writes the files of a directory, which are prepared concurrently and
+     * written in sorted order. The number of prepared entries that are kept
+     * in memory is bounded.
+     */
+    private void writeDirectory(UberJarWriter writer, ExecutorService executor, File directory, String prefix) throws IOException {
+        var stored = new PatternSet().include(getStoredPatterns().get()).getAsSpec();
+        var level = getCompressionLevel().get();
+        var window = Math.max(1, getCompressionParallelism().get()) * 4;
+        var pending = new ArrayDeque<Future<UberJarWriter.PreparedEntry>>();
+        var files = new ArrayList<FileVisitDetails>();
+        getObjects().fileTree().from(directory)
+            .matching(this::excludeTemplateSources)
+            .visit(files::add);
+        files.sort(Comparator.comparing(details -> details.getRelativePath().getPathString()));
+        for (var details : files) {
+            var name = prefix + details.getRelativePath().getPathString();
+            var file = details.getFile();
+            var store = !details.isDirectory() && stored.isSatisfiedBy(details);
+            pending.add(executor.submit(() -> UberJarWriter.prepare(name, file, store, level)));
+            if (pending.size() >= window) {
+                writer.writePrepared(take(pending));
+            }
+        }
+        while (!pending.isEmpty()) {
+            writer.writePrepared(take(pending));
+        }
+    }
+
+    private void excludeTemplateSources(PatternFilterable patterns) {
+        patterns.exclude(getExcludes().get());
+        patterns.exclude(new TemplateMarkupSpec(getDetectedTemplateExcludes().get(), false));
+    }
+
+    private static UberJarWriter.PreparedEntry take(Deque<Future<UberJarWriter.PreparedEntry>> pending) throws IOException {
+        try {
+            return pending.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while compressing the uber jar entries", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new GradleException("Couldn't compress an uber jar entry", e.getCause());
+        }
+    }
+
+    private static boolean isJar(File file) {
+        return file.isFile() && file.getName().toLowerCase(Locale.ENGLISH).endsWith(".jar");
+    }
+}
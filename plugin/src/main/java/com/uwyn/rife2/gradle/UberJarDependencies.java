@@ -0,0 +1,81 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Gradle task to merge the dependency jars of a RIFE2 web application into
+ * a single archive segment, which the {@link UberJar} task copies as a whole.
+ * <p>
+ * The segment only changes when the dependencies change, so it's usually
+ * up-to-date or taken from the build cache while the application changes.
+ */
+@CacheableTask
+public abstract class UberJarDependencies extends DefaultTask {
+    /**
+     * The dependency jars to merge.
+     *
+     * @return the dependency jars
+     */
+    @Classpath
+    public abstract ConfigurableFileCollection getDependencies();
+
+    /**
+     * Specifies whether the entries keep the timestamps from the dependency jars.
+     * Defaults to {@code false}, which makes the archive reproducible.
+     *
+     * @return {@code true} when file timestamps are preserved;
+     * {@code false} otherwise
+     */
+    @Input
+    public abstract Property<Boolean> getPreserveFileTimestamps();
+
+    /**
+     * The archive with the merged dependencies.
+     *
+     * @return the merged dependencies archive
+     */
+    @OutputFile
+    public abstract RegularFileProperty getArchiveFile();
+
+    /**
+     * Merges the dependency jars.
+     *
+     * @throws IOException when the archive couldn't be written
+     */
+    @TaskAction
+    public void merge() throws IOException {
+        try (var writer = new UberJarWriter(getArchiveFile().get().getAsFile(), getPreserveFileTimestamps().get())) {
+            for (var dependency : getDependencies()) {
+                if (dependency.isFile() && dependency.getName().toLowerCase(Locale.ENGLISH).endsWith(".jar")) {
+                    writer.copyEntries(dependency);
+                }
+            }
+        }
+    }
+}
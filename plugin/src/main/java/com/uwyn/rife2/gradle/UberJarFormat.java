@@ -0,0 +1,33 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+/**
+ * Specifies how the dependencies are stored in the uber jar.
+ */
+public enum UberJarFormat {
+    /**
+     * The entries of the dependency jars are merged into the uber jar,
+     * which can be launched directly by the JVM.
+     */
+    FLAT,
+    /**
+     * The dependency jars are stored unmodified under {@code lib/} in the
+     * uber jar, and the application is started by a small launcher that
+     * loads the classes from the nested jars in place.
+     */
+    NESTED
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Determines which classes of an uber jar are reachable from a set of root
+ * classes.
+ * <p>
+ * A class references every class whose name appears in its constant pool,
+ * whether as a class constant, in a type descriptor or signature, or as a
+ * string constant in binary or internal form. This over-approximates the
+ * actual references, but it also keeps most classes that are loaded
+ * reflectively by a constant name.
+ */
+final class UberJarShrinker {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final Pattern DESCRIPTOR_TYPE = Pattern.compile("L([^;<>()\\[]+)[;<]");
+
+    /**
+     * Reads the bytes of a class entry.
+     */
+    interface ClassBytes {
+        byte[] read() throws IOException;
+    }
+
+    private final Map<String, ClassBytes> classes_;
+
+    /**
+     * @param classes the bytes of the class entries, by entry name
+     */
+    UberJarShrinker(Map<String, ClassBytes> classes) {
+        classes_ = classes;
+    }
+
+    /**
+     * Determines the class entries that are reachable from the roots.
+     *
+     * @param roots the entry names of the root classes
+     * @return the entry names of the reachable classes, including the roots
+     */
+    Set<String> reachable(Collection<String> roots) throws IOException {
+        var reachable = new HashSet<String>();
+        var pending = new ArrayDeque<String>();
+        for (var root : roots) {
+            if (classes_.containsKey(root) && reachable.add(root)) {
+                pending.add(root);
+            }
+        }
+        while (!pending.isEmpty()) {
+            var name = pending.removeFirst();
+            for (var reference : references(classes_.get(name).read())) {
+                var entry = reference + ".class";
+                if (classes_.containsKey(entry) && reachable.add(entry)) {
+                    pending.add(entry);
+                }
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Collects the class names in internal form that appear in the constant
+     * pool of a class.
+     */
+    static Set<String> references(byte[] bytes) throws IOException {
+        var references = new HashSet<String>();
+        var in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC) {
+            return references;
+        }
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+        var count = in.readUnsignedShort();
+        for (var i = 1; i < count; i++) {
+            var tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1 -> {
+                    var value = in.readUTF();
+                    references.add(value);
+                    if (value.indexOf('.') != -1) {
+                        references.add(value.replace('.', '/'));
+                    }
+                    var matcher = DESCRIPTOR_TYPE.matcher(value);
+                    while (matcher.find()) {
+                        references.add(matcher.group(1));
+                    }
+                }
+                case 7, 8, 16, 19, 20 -> in.skipBytes(2);
+                case 15 -> in.skipBytes(3);
+                case 3, 4, 9, 10, 11, 12, 17, 18 -> in.skipBytes(4);
+                case 5, 6 -> {
+                    in.skipBytes(8);
+                    i++;
+                }
+                default -> throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        return references;
+    }
+
+    /**
+     * Creates a predicate that matches entry names with Ant-style patterns,
+     * where {@code **} matches any number of directories.
+     */
+    static Predicate<String> patterns(Collection<String> patterns) {
+        if (patterns.isEmpty()) {
+            return name -> false;
+        }
+        var regex = patterns.stream()
+            .map(UberJarShrinker::patternRegex)
+            .collect(Collectors.joining("|"));
+        var pattern = Pattern.compile(regex);
+        return name -> pattern.matcher(name).matches();
+    }
+
+    private static String patternRegex(String pattern) {
+        var regex = new StringBuilder("(?:");
+        var path = pattern.startsWith("/") ? pattern.substring(1) : pattern;
+        for (var i = 0; i < path.length(); i++) {
+            var c = path.charAt(i);
+            if (path.startsWith("**/", i)) {
+                regex.append("(?:.*/)?");
+                i += 2;
+            } else if (path.startsWith("**", i)) {
+                regex.append(".*");
+                i += 1;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.append(')').toString();
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipExtraField;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a jar archive that merges files and the entries of other archives.
+ * <p>
+ * The entries of other archives are copied without being inflated and
+ * deflated again. When several entries have the same name, only the
+ * first one is written.
+ * <p>
+ * Unless file timestamps are preserved, all entries get the same
+ * {@link Rife2Plugin#REPRODUCIBLE_TIMESTAMP timestamp} and the extra
+ * fields of copied entries are dropped, so that the same inputs always
+ * produce the same bytes.
+ */
+class UberJarWriter implements Closeable {
+    /**
+     * A file entry whose data was read and compressed ahead of being written,
+     * so that entries can be prepared concurrently and written in order.
+     */
+    record PreparedEntry(String name, long time, int method, long crc, long size, byte[] data) {
+        boolean isDirectory() {
+            return data == null;
+        }
+    }
+
+    private final ZipArchiveOutputStream out_;
+    private final Set<String> entries_ = new HashSet<>();
+    private final boolean preserveFileTimestamps_;
+
+    UberJarWriter(File file, boolean preserveFileTimestamps) throws IOException {
+        out_ = new ZipArchiveOutputStream(file);
+        preserveFileTimestamps_ = preserveFileTimestamps;
+    }
+
+    /**
+     * Writes the manifest, which should be the first entry of the archive.
+     *
+     * @param mainClass the main class; or {@code null} if there's none
+     */
+    void writeManifest(String mainClass) throws IOException {
+        writeManifest(mainClass, Map.of());
+    }
+
+    /**
+     * Writes the manifest, which should be the first entry of the archive.
+     *
+     * @param mainClass  the main class; or {@code null} if there's none
+     * @param attributes additional main attributes of the manifest
+     */
+    void writeManifest(String mainClass, Map<String, String> attributes) throws IOException {
+        var manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (mainClass != null) {
+            manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
+        }
+        attributes.forEach((name, value) -> manifest.getMainAttributes().putValue(name, value));
+        var bytes = new ByteArrayOutputStream();
+        manifest.write(bytes);
+        writeBytes(JarFile.MANIFEST_NAME, bytes.toByteArray(), System.currentTimeMillis());
+    }
+
+    /**
+     * Writes a file without compressing it, so that its content can be read
+     * in place from the archive.
+     */
+    void writeStoredFile(String name, File file) throws IOException {
+        if (!addEntry(name)) {
+            return;
+        }
+        var crc = new CRC32();
+        try (var in = Files.newInputStream(file.toPath())) {
+            var buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        var entry = new ZipArchiveEntry(name);
+        entry.setTime(time(file.lastModified()));
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(file.length());
+        entry.setCrc(crc.getValue());
+        out_.putArchiveEntry(entry);
+        Files.copy(file.toPath(), out_);
+        out_.closeArchiveEntry();
+    }
+
+    void writeBytes(String name, byte[] bytes, long time) throws IOException {
+        if (!addEntry(name)) {
+            return;
+        }
+        var entry = new ZipArchiveEntry(name);
+        entry.setTime(time(time));
+        entry.setSize(bytes.length);
+        out_.putArchiveEntry(entry);
+        out_.write(bytes);
+        out_.closeArchiveEntry();
+    }
+
+    void writeDirectory(String name, long time) throws IOException {
+        if (!name.endsWith("/")) {
+            name = name + "/";
+        }
+        if (!addEntry(name)) {
+            return;
+        }
+        var entry = new ZipArchiveEntry(name);
+        entry.setTime(time(time));
+        out_.putArchiveEntry(entry);
+        out_.closeArchiveEntry();
+    }
+
+    /**
+     * Prepares a file or directory entry, this can be called concurrently.
+     *
+     * @param name   the name of the entry
+     * @param file   the file or directory
+     * @param stored {@code true} when the file should be stored without compression
+     * @param level  the deflate level of compressed files
+     */
+    static PreparedEntry prepare(String name, File file, boolean stored, int level) throws IOException {
+        if (file.isDirectory()) {
+            return new PreparedEntry(name, file.lastModified(), ZipEntry.STORED, 0, 0, null);
+        }
+        var content = Files.readAllBytes(file.toPath());
+        var crc = new CRC32();
+        crc.update(content);
+        if (stored) {
+            return new PreparedEntry(name, file.lastModified(), ZipEntry.STORED, crc.getValue(), content.length, content);
+        }
+        var deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            var compressed = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+            var buffer = new byte[8192];
+            while (!deflater.finished()) {
+                var length = deflater.deflate(buffer);
+                compressed.write(buffer, 0, length);
+            }
+            return new PreparedEntry(name, file.lastModified(), ZipEntry.DEFLATED, crc.getValue(), content.length, compressed.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writes an entry that was prepared beforehand, without compressing it again.
+     */
+    void writePrepared(PreparedEntry prepared) throws IOException {
+        if (prepared.isDirectory()) {
+            writeDirectory(prepared.name(), prepared.time());
+            return;
+        }
+        if (!addEntry(prepared.name())) {
+            return;
+        }
+        var entry = new ZipArchiveEntry(prepared.name());
+        entry.setTime(time(prepared.time()));
+        entry.setMethod(prepared.method());
+        entry.setCrc(prepared.crc());
+        entry.setSize(prepared.size());
+        entry.setCompressedSize(prepared.data().length);
+        out_.addRawArchiveEntry(entry, new ByteArrayInputStream(prepared.data()));
+    }
+
+    /**
+     * Copies the entries of another archive, keeping their compressed data as-is.
+     *
+     * @param archive the archive to copy the entries from
+     */
+    void copyEntries(File archive) throws IOException {
+        try (var zip = new ZipFile(archive)) {
+            var entries = zip.getEntries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    writeDirectory(entry.getName(), entry.getTime());
+                } else {
+                    copyEntry(zip, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies a single file entry of another archive, keeping its compressed data as-is.
+     *
+     * @param zip   the archive to copy the entry from
+     * @param entry the entry to copy
+     */
+    void copyEntry(ZipFile zip, ZipArchiveEntry entry) throws IOException {
+        if (!addEntry(entry.getName())) {
+            return;
+        }
+        var copy = new ZipArchiveEntry(entry);
+        if (!preserveFileTimestamps_) {
+            copy.setExtraFields(new ZipExtraField[0]);
+            copy.setTime(Rife2Plugin.REPRODUCIBLE_TIMESTAMP);
+        }
+        out_.addRawArchiveEntry(copy, zip.getRawInputStream(entry));
+    }
+
+    /**
+     * Prevents entries from being written, as if they were already present.
+     *
+     * @param names the names of the entries to leave out
+     */
+    void skip(Collection<String> names) {
+        entries_.addAll(names);
+    }
+
+    /**
+     * Registers a new entry, together with the directory entries of its parents.
+     *
+     * @return {@code true} when the entry needs to be written; or
+     * {@code false} when an entry with the same name was already written
+     */
+    private boolean addEntry(String name) throws IOException {
+        if (entries_.contains(name)) {
+            return false;
+        }
+        var parent = name.lastIndexOf('/', name.length() - 2);
+        if (parent > 0) {
+            writeDirectory(name.substring(0, parent + 1), System.currentTimeMillis());
+        }
+        entries_.add(name);
+        return true;
+    }
+
+    private long time(long time) {
+        return preserveFileTimestamps_ ? time : Rife2Plugin.REPRODUCIBLE_TIMESTAMP;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out_.close();
+    }
+}
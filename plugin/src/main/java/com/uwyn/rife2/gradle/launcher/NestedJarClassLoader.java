@@ -0,0 +1,358 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle.launcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Class loader that loads classes and resources from a jar and from the jars
+ * that are stored uncompressed inside of it.
+ * <p>
+ * The nested jars are read in place through their central directory, they are
+ * never extracted to disk. The versioned entries of multi-release jars are
+ * used for the running Java version. Signed nested jars are verified once when
+ * the class loader is created, and their classes are defined with the code
+ * signers of their entries.
+ * <p>
+ * The resources of the nested jars have {@code rife2-nested} URLs, which
+ * identify the outer jar, the nested jar and the entry. The launcher registers
+ * the handler of these URLs for the whole JVM through
+ * {@link NestedUrlStreamHandlerProvider}, so that they can also be recreated
+ * from their string or URI form.
+ */
+public class NestedJarClassLoader extends ClassLoader implements AutoCloseable {
+    static final String NESTED_PROTOCOL = "rife2-nested";
+    private static final String NESTED_SEPARATOR = "!/";
+    private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+    private static final String VERSIONS_DIRECTORY = "META-INF/versions/";
+    private static final int BASE_VERSION = 8;
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    // the path of the outer jar in the nested URLs -> the class loader that reads it
+    private static final Map<String, NestedJarClassLoader> LOADERS = new ConcurrentHashMap<>();
+
+    private final String jarPath_;
+    private final FileChannel channel_;
+    private final List<Archive> archives_ = new ArrayList<>();
+
+    /**
+     * Creates a class loader for a jar and the jars that are nested in it.
+     *
+     * @param jar    the path of the outer jar
+     * @param libs   the names of the nested jar entries, in class path order
+     * @param parent the parent class loader
+     */
+    public NestedJarClassLoader(Path jar, List<String> libs, ClassLoader parent) throws IOException {
+        super("rife2-nested", parent);
+        jarPath_ = jar.toUri().getRawPath();
+        channel_ = FileChannel.open(jar, StandardOpenOption.READ);
+        var jarUrl = jar.toUri().toURL();
+        var rootIndex = ZipIndex.read(channel_, 0, channel_.size());
+        var rootManifest = manifest(rootIndex);
+        archives_.add(new Archive(null, rootIndex, new URL("jar:" + jarUrl + NESTED_SEPARATOR), domain(jarUrl, null), rootManifest, isMultiRelease(rootManifest), Map.of()));
+        for (var lib : libs) {
+            var entry = rootIndex.get(lib);
+            if (entry == null) {
+                throw new IOException("Missing nested jar " + lib);
+            }
+            if (entry.method() != 0) {
+                throw new IOException("Nested jar " + lib + " must be stored uncompressed");
+            }
+            var index = ZipIndex.read(channel_, rootIndex.dataOffset(entry), entry.size());
+            var url = new URL(NESTED_PROTOCOL, null, -1, jarPath_ + NESTED_SEPARATOR + lib + NESTED_SEPARATOR, NestedUrlHandler.INSTANCE);
+            var signedDomains = isSigned(index) ? signedDomains(url, rootIndex.content(entry)) : Map.<String, ProtectionDomain>of();
+            var manifest = manifest(index);
+            archives_.add(new Archive(lib, index, url, domain(url, null), manifest, isMultiRelease(manifest), signedDomains));
+        }
+        LOADERS.put(jarPath_, this);
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        var path = name.replace('.', '/') + ".class";
+        for (var archive : archives_) {
+            var entry = archive.entry(path);
+            if (entry == null) {
+                continue;
+            }
+            try {
+                var bytes = archive.index().content(entry);
+                definePackage(name, archive);
+                return defineClass(name, bytes, 0, bytes.length, archive.domain(entry.name()));
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+        throw new ClassNotFoundException(name);
+    }
+
+    @Override
+    protected URL findResource(String name) {
+        for (var archive : archives_) {
+            var url = archive.resource(name);
+            if (url != null) {
+                return url;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) {
+        var urls = new ArrayList<URL>();
+        for (var archive : archives_) {
+            var url = archive.resource(name);
+            if (url != null) {
+                urls.add(url);
+            }
+        }
+        return Collections.enumeration(urls);
+    }
+
+    @Override
+    public void close() throws IOException {
+        LOADERS.remove(jarPath_, this);
+        channel_.close();
+    }
+
+    private ProtectionDomain domain(URL location, CodeSigner[] signers) {
+        return new ProtectionDomain(new CodeSource(location, signers), null, this, null);
+    }
+
+    private static Manifest manifest(ZipIndex index) throws IOException {
+        var manifest = index.get(MANIFEST_NAME);
+        if (manifest == null) {
+            return null;
+        }
+        return new Manifest(new ByteArrayInputStream(index.content(manifest)));
+    }
+
+    private static boolean isMultiRelease(Manifest manifest) {
+        return manifest != null && Boolean.parseBoolean(manifest.getMainAttributes().getValue(Attributes.Name.MULTI_RELEASE));
+    }
+
+    private static boolean isSigned(ZipIndex index) {
+        for (var entry : index.entries()) {
+            var name = entry.name().toUpperCase(Locale.ENGLISH);
+            if (name.startsWith("META-INF/") && name.indexOf('/', "META-INF/".length()) == -1 && name.endsWith(".SF")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // reading every entry completely through a verifying stream checks the digests
+    // and provides the code signers, a tampered entry throws a SecurityException
+    private Map<String, ProtectionDomain> signedDomains(URL location, byte[] jar) throws IOException {
+        var domains = new HashMap<List<CodeSigner>, ProtectionDomain>();
+        var entries = new HashMap<String, ProtectionDomain>();
+        try (var in = new JarInputStream(new ByteArrayInputStream(jar), true)) {
+            JarEntry entry;
+            while ((entry = in.getNextJarEntry()) != null) {
+                in.transferTo(OutputStream.nullOutputStream());
+                var signers = entry.getCodeSigners();
+                if (signers != null) {
+                    entries.put(entry.getName(), domains.computeIfAbsent(List.of(signers), s -> domain(location, signers)));
+                }
+            }
+        }
+        return entries;
+    }
+
+    // defines the package with the attributes of the manifest of its jar, like URLClassLoader does
+    private void definePackage(String className, Archive archive) {
+        var index = className.lastIndexOf('.');
+        if (index == -1) {
+            return;
+        }
+        var name = className.substring(0, index);
+        if (getDefinedPackage(name) == null) {
+            try {
+                var manifest = archive.manifest();
+                if (manifest == null) {
+                    definePackage(name, null, null, null, null, null, null, null);
+                } else {
+                    var path = name.replace('.', '/') + "/";
+                    var sealed = "true".equalsIgnoreCase(attribute(manifest, path, Attributes.Name.SEALED));
+                    definePackage(name,
+                        attribute(manifest, path, Attributes.Name.SPECIFICATION_TITLE),
+                        attribute(manifest, path, Attributes.Name.SPECIFICATION_VERSION),
+                        attribute(manifest, path, Attributes.Name.SPECIFICATION_VENDOR),
+                        attribute(manifest, path, Attributes.Name.IMPLEMENTATION_TITLE),
+                        attribute(manifest, path, Attributes.Name.IMPLEMENTATION_VERSION),
+                        attribute(manifest, path, Attributes.Name.IMPLEMENTATION_VENDOR),
+                        sealed ? archive.base() : null);
+                }
+            } catch (IllegalArgumentException e) {
+                // defined concurrently by another thread
+            }
+        }
+    }
+
+    // the attributes of the package entry take precedence over the main attributes
+    private static String attribute(Manifest manifest, String path, Attributes.Name name) {
+        var attributes = manifest.getAttributes(path);
+        var value = attributes == null ? null : attributes.getValue(name);
+        return value != null ? value : manifest.getMainAttributes().getValue(name);
+    }
+
+    /**
+     * Reads an entry of a nested jar.
+     *
+     * @param path the path of a nested URL
+     * @return the content of the entry
+     */
+    static byte[] nestedContent(String path) throws IOException {
+        var separator = path.indexOf(NESTED_SEPARATOR);
+        if (separator == -1) {
+            throw new MalformedURLException("Invalid nested jar path " + path);
+        }
+        var loader = LOADERS.get(path.substring(0, separator));
+        if (loader == null) {
+            throw new IOException("The nested jar of " + path + " isn't open");
+        }
+        return loader.content(path.substring(separator + NESTED_SEPARATOR.length()));
+    }
+
+    private byte[] content(String path) throws IOException {
+        var separator = path.indexOf(NESTED_SEPARATOR);
+        if (separator == -1) {
+            throw new MalformedURLException("Invalid nested jar path " + path);
+        }
+        var lib = path.substring(0, separator);
+        var name = path.substring(separator + NESTED_SEPARATOR.length());
+        for (var archive : archives_) {
+            if (lib.equals(archive.name())) {
+                var entry = archive.index().get(name);
+                if (entry != null) {
+                    return archive.index().content(entry);
+                }
+            }
+        }
+        throw new IOException("Missing nested jar entry " + path);
+    }
+
+    /**
+     * A jar that classes and resources are loaded from.
+     */
+    private record Archive(String name, ZipIndex index, URL base, ProtectionDomain domain, Manifest manifest,
+                           boolean multiRelease, Map<String, ProtectionDomain> signedDomains) {
+        ZipIndex.Entry entry(String path) {
+            if (multiRelease && !path.startsWith("META-INF/")) {
+                for (var version = Runtime.version().feature(); version > BASE_VERSION; version--) {
+                    var entry = index.get(VERSIONS_DIRECTORY + version + "/" + path);
+                    if (entry != null) {
+                        return entry;
+                    }
+                }
+            }
+            return index.get(path);
+        }
+
+        ProtectionDomain domain(String entry) {
+            return signedDomains.getOrDefault(entry, domain);
+        }
+
+        URL resource(String resource) {
+            var entry = entry(resource);
+            if (entry == null && !resource.endsWith("/")) {
+                entry = index.get(resource + "/");
+            }
+            // the nested jars are only reachable through the class loader
+            if (entry == null || (name == null && resource.startsWith(UberJarLayout.LIB_DIRECTORY))) {
+                return null;
+            }
+            try {
+                return new URL(base, entry.name());
+            } catch (MalformedURLException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Handles the URLs of the resources in nested jars.
+     */
+    static class NestedUrlHandler extends URLStreamHandler {
+        static final NestedUrlHandler INSTANCE = new NestedUrlHandler();
+
+        @Override
+        protected URLConnection openConnection(URL url) {
+            return new NestedUrlConnection(url);
+        }
+    }
+
+    private static class NestedUrlConnection extends URLConnection {
+        private byte[] content_;
+
+        NestedUrlConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (content_ == null) {
+                content_ = nestedContent(getURL().getPath());
+                connected = true;
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            return new ByteArrayInputStream(content_);
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            try {
+                connect();
+                return content_.length;
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle.launcher;
+
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarFile;
+
+/**
+ * Launches the application of an uber jar that nests its dependency jars.
+ * <p>
+ * The main class and the nested jars are read from the manifest, as described
+ * by {@link UberJarLayout}.
+ */
+public final class NestedJarLauncher {
+    private NestedJarLauncher() {
+    }
+
+    public static void main(String[] args) throws Throwable {
+        var jar = Path.of(NestedJarLauncher.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        String mainClass;
+        List<String> libs;
+        try (var file = new JarFile(jar.toFile())) {
+            var attributes = file.getManifest().getMainAttributes();
+            mainClass = attributes.getValue(UberJarLayout.MAIN_CLASS_ATTRIBUTE);
+            var classPath = attributes.getValue(UberJarLayout.CLASS_PATH_ATTRIBUTE);
+            libs = classPath == null || classPath.isBlank() ? List.of() : Arrays.asList(classPath.trim().split(" +"));
+        }
+        if (mainClass == null) {
+            throw new IllegalStateException("Missing " + UberJarLayout.MAIN_CLASS_ATTRIBUTE + " manifest attribute in " + jar);
+        }
+
+        var loader = new NestedJarClassLoader(jar, libs, ClassLoader.getPlatformClassLoader());
+        Thread.currentThread().setContextClassLoader(loader);
+        var main = Class.forName(mainClass, true, loader).getMethod("main", String[].class);
+        try {
+            main.invoke(null, (Object) args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle.launcher;
+
+import java.net.URLStreamHandler;
+import java.net.spi.URLStreamHandlerProvider;
+
+/**
+ * Provides the handler of the {@code rife2-nested} URLs of the resources in
+ * nested jars to the whole JVM.
+ * <p>
+ * The uber jar registers this provider as a service in its root, where the
+ * system class loader finds it when a nested URL is created from its string
+ * or URI form.
+ */
+public class NestedUrlStreamHandlerProvider extends URLStreamHandlerProvider {
+    @Override
+    public URLStreamHandler createURLStreamHandler(String protocol) {
+        if (NestedJarClassLoader.NESTED_PROTOCOL.equals(protocol)) {
+            return NestedJarClassLoader.NestedUrlHandler.INSTANCE;
+        }
+        return null;
+    }
+}
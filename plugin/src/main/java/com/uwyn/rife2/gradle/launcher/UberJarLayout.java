@@ -0,0 +1,39 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle.launcher;
+
+/**
+ * Layout of an uber jar that nests its dependency jars.
+ */
+public final class UberJarLayout {
+    /**
+     * The directory that contains the nested dependency jars.
+     */
+    public static final String LIB_DIRECTORY = "lib/";
+
+    /**
+     * The manifest attribute with the main class of the application.
+     */
+    public static final String MAIN_CLASS_ATTRIBUTE = "Rife2-Main-Class";
+
+    /**
+     * The manifest attribute with the space-separated nested jars, in class path order.
+     */
+    public static final String CLASS_PATH_ATTRIBUTE = "Rife2-Class-Path";
+
+    private UberJarLayout() {
+    }
+}
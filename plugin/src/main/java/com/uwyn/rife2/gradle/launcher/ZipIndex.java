@@ -0,0 +1,175 @@
+/*
+ * Copyright 2003-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.uwyn.rife2.gradle.launcher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Random-access index of a zip archive that is stored in a region of a file.
+ * <p>
+ * This allows the entries of a jar that is stored uncompressed inside another
+ * jar to be read directly, without extracting the nested jar first. Zip64
+ * archives aren't supported.
+ */
+final class ZipIndex {
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    record Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+    }
+
+    private final FileChannel channel_;
+    private final long base_;
+    private final Map<String, Entry> entries_;
+
+    private ZipIndex(FileChannel channel, long base, Map<String, Entry> entries) {
+        channel_ = channel;
+        base_ = base;
+        entries_ = entries;
+    }
+
+    /**
+     * Reads the central directory of the zip archive that's stored in a region of a file.
+     *
+     * @param channel the channel of the file
+     * @param base    the offset of the zip archive in the file
+     * @param length  the length of the zip archive
+     * @return the index of the zip archive
+     */
+    static ZipIndex read(FileChannel channel, long base, long length) throws IOException {
+        var tailLength = (int) Math.min(length, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        var tail = read(channel, base + length - tailLength, tailLength);
+        var end = -1;
+        for (var i = tailLength - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new ZipException("Missing end of central directory record");
+        }
+
+        var count = Short.toUnsignedInt(tail.getShort(end + 10));
+        var directorySize = Integer.toUnsignedLong(tail.getInt(end + 12));
+        var directoryOffset = Integer.toUnsignedLong(tail.getInt(end + 16));
+        var directory = read(channel, base + directoryOffset, (int) directorySize);
+        var entries = new LinkedHashMap<String, Entry>();
+        var position = 0;
+        for (var i = 0; i < count; i++) {
+            if (directory.getInt(position) != CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new ZipException("Invalid central directory header");
+            }
+            var method = Short.toUnsignedInt(directory.getShort(position + 10));
+            var compressedSize = Integer.toUnsignedLong(directory.getInt(position + 20));
+            var size = Integer.toUnsignedLong(directory.getInt(position + 24));
+            var nameLength = Short.toUnsignedInt(directory.getShort(position + 28));
+            var extraLength = Short.toUnsignedInt(directory.getShort(position + 30));
+            var commentLength = Short.toUnsignedInt(directory.getShort(position + 32));
+            var localHeaderOffset = Integer.toUnsignedLong(directory.getInt(position + 42));
+            var name = new byte[nameLength];
+            directory.get(position + 46, name);
+            var entry = new Entry(new String(name, StandardCharsets.UTF_8), method, compressedSize, size, localHeaderOffset);
+            entries.putIfAbsent(entry.name(), entry);
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+        return new ZipIndex(channel, base, entries);
+    }
+
+    Entry get(String name) {
+        return entries_.get(name);
+    }
+
+    Iterable<Entry> entries() {
+        return entries_.values();
+    }
+
+    /**
+     * Determines the offset of the data of an entry in the file.
+     *
+     * @param entry the entry
+     * @return the absolute offset of the entry data
+     */
+    long dataOffset(Entry entry) throws IOException {
+        var header = read(channel_, base_ + entry.localHeaderOffset(), LOCAL_HEADER_SIZE);
+        var nameLength = Short.toUnsignedInt(header.getShort(26));
+        var extraLength = Short.toUnsignedInt(header.getShort(28));
+        return base_ + entry.localHeaderOffset() + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    /**
+     * Reads the uncompressed content of an entry.
+     *
+     * @param entry the entry
+     * @return the content of the entry
+     */
+    byte[] content(Entry entry) throws IOException {
+        var data = read(channel_, dataOffset(entry), (int) entry.compressedSize());
+        var compressed = new byte[data.remaining()];
+        data.get(compressed);
+        return switch (entry.method()) {
+            case 0 -> compressed;
+            case 8 -> inflate(compressed, (int) entry.size());
+            default -> throw new ZipException("Unsupported compression method " + entry.method() + " for " + entry.name());
+        };
+    }
+
+    private static byte[] inflate(byte[] compressed, int size) throws ZipException {
+        var inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            var content = new byte[size];
+            var length = 0;
+            while (length < size && !inflater.finished()) {
+                var inflated = inflater.inflate(content, length, size - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != size) {
+                throw new ZipException("Unexpected end of compressed data");
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        var buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new ZipException("Unexpected end of archive");
+            }
+        }
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,74 @@
+package com.uwyn.rife2.gradle
+
+import java.nio.file.Path
+import java.util.jar.JarOutputStream
+import java.util.zip.ZipEntry
+
+import javax.tools.ToolProvider
+
+abstract class AbstractPackagingTest extends AbstractFunctionalTest {
+    def setup() {
+        usesProject("minimal")
+    }
+
+    // makes hello.Check the main class of the packaged application, it prints what a feature checks
+    void checkMainClass(String statements) {
+        file("src/main/java/hello/Check.java") << """package hello;
+public class Check {
+    public static void main(String[] args) throws Exception {
+$statements
+    }
+}
+"""
+        buildFile << """
+            rife2 {
+                uberMainClass = "hello.Check"
+            }
+        """
+    }
+
+    // runs the main class of a jar and returns its output
+    String runJar(File jar, String java = javaCommand()) {
+        exec(java, "-jar", jar.absolutePath)
+    }
+
+    static String javaCommand() {
+        Path.of(System.getProperty("java.home"), "bin", "java").toString()
+    }
+
+    static String exec(String... command) {
+        def process = new ProcessBuilder(command).redirectErrorStream(true).start()
+        def output = process.inputStream.text
+        assert process.waitFor() == 0: output
+        output
+    }
+
+    void compile(String destination, String path, String source) {
+        def sources = file("$destination-src/$path")
+        sources.parentFile.mkdirs()
+        sources.text = source
+        file(destination).mkdirs()
+        assert ToolProvider.systemJavaCompiler.run(null, null, null, "--release", "17", "-d", file(destination).absolutePath, sources.absolutePath) == 0
+        file("libs").mkdirs()
+    }
+
+    void sameNamedDependencies() {
+        compile("first", "a/A.java", 'package a; public class A { public static String a() { return "a"; } }')
+        compile("second", "b/B.java", 'package b; public class B { public static String b() { return "b"; } }')
+        file("libs/first").mkdirs()
+        file("libs/second").mkdirs()
+        new JarOutputStream(file("libs/first/core.jar").newOutputStream()).withCloseable { out ->
+            out.putNextEntry(new ZipEntry("a/A.class"))
+            out.write(file("first/a/A.class").bytes)
+        }
+        new JarOutputStream(file("libs/second/core.jar").newOutputStream()).withCloseable { out ->
+            out.putNextEntry(new ZipEntry("b/B.class"))
+            out.write(file("second/b/B.class").bytes)
+        }
+        buildFile << """
+            dependencies {
+                implementation(files("libs/first/core.jar", "libs/second/core.jar"))
+            }
+        """
+    }
+}
@@ -0,0 +1,43 @@
+package com.uwyn.rife2.gradle
+
+import java.util.zip.ZipFile
+
+class ConfigurationCacheTest extends AbstractFunctionalTest {
+    def setup() {
+        usesProject("minimal")
+    }
+
+    def "#task stores and reuses the configuration cache"() {
+        when:
+        run '--configuration-cache', task
+
+        then:
+        outputContains "Configuration cache entry stored."
+
+        when:
+        run '--configuration-cache', task
+
+        then:
+        outputContains "Configuration cache entry reused."
+
+        where:
+        task << ['test', 'jar', 'uberJar', 'thinDistribution', 'ociImage', 'rife2Instrument']
+    }
+
+    def "reads the extension values when the configuration cache is stored"() {
+        given:
+        buildFile << """
+            rife2 {
+                includeServerDependencies = false
+            }
+        """
+
+        when:
+        run '--configuration-cache', 'uberJar'
+
+        then:
+        new ZipFile(file("build/libs/hello-uber-1.0.jar")).withCloseable { zip ->
+            zip.getEntry("rife/engine/Site.class") != null && zip.getEntry("org/eclipse/jetty/server/Server.class") == null
+        }
+    }
+}
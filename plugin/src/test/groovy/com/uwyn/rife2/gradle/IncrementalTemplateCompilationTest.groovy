@@ -0,0 +1,66 @@
+package com.uwyn.rife2.gradle
+
+class IncrementalTemplateCompilationTest extends AbstractFunctionalTest {
+    def setup() {
+        usesProject("minimal")
+    }
+
+    def "only recompiles the modified templates"() {
+        given:
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+        def hello = file("build/generated/classes/rife2/rife/template/html/hello.class")
+        def world = file("build/generated/classes/rife2/rife/template/html/world.class")
+        def helloModified = hello.lastModified()
+        def worldModified = world.lastModified()
+        sleep 1100
+
+        when:
+        file("src/main/templates/hello.html") << "<p>modified</p>"
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+
+        then:
+        tasks {
+            succeeded ":${Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME}"
+        }
+        hello.lastModified() != helloModified
+        world.lastModified() == worldModified
+    }
+
+    def "deletes the classes of removed templates"() {
+        given:
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+        def hello = file("build/generated/classes/rife2/rife/template/html/hello.class")
+        def world = file("build/generated/classes/rife2/rife/template/html/world.class")
+        assert hello.exists()
+
+        when:
+        file("src/main/templates/hello.html").delete()
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+
+        then:
+        !hello.exists()
+        world.exists()
+    }
+
+    def "recompiles the templates that include a modified template"() {
+        given:
+        file("src/main/templates/common").mkdirs()
+        file("src/main/templates/common/header.html") << "<h1>Header</h1>"
+        file("src/main/templates/page.html") << "<!--i common.header/--><p>Page</p>"
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+        def page = file("build/generated/classes/rife2/rife/template/html/page.class")
+        def hello = file("build/generated/classes/rife2/rife/template/html/hello.class")
+        def pageModified = page.lastModified()
+        def helloModified = hello.lastModified()
+        sleep 1100
+
+        when:
+        file("src/main/templates/common/header.html") << "<h2>Subtitle</h2>"
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+
+        then:
+        file("build/generated/rife2/template-includes.txt").readLines().contains("html\tpage\tcommon.header")
+        page.lastModified() != pageModified
+        hello.lastModified() == helloModified
+    }
+}
@@ -0,0 +1,34 @@
+package com.uwyn.rife2.gradle
+
+import org.gradle.util.GFileUtils
+
+class IsolatedProjectsTest extends AbstractFunctionalTest {
+    def setup() {
+        ["app1", "app2"].each { name ->
+            GFileUtils.copyDirectory(new File("src/test-projects/minimal"), file(name))
+            file("$name/settings.gradle").delete()
+        }
+        settingsFile.text = """
+            rootProject.name = 'multi'
+            include 'app1', 'app2'
+        """
+    }
+
+    def "builds several web applications with isolated projects"() {
+        when:
+        run '-Dorg.gradle.unsafe.isolated-projects=true', 'test', 'uberJar', 'thinDistribution', 'ociImage'
+
+        then:
+        outputContains "Configuration cache entry stored."
+        file("app1/build/libs/hello-uber-1.0.jar").isFile()
+        file("app2/build/libs/hello-uber-1.0.jar").isFile()
+        file("app1/build/rife2/thin/hello-thin-1.0.jar").isFile()
+        file("app2/build/rife2/image.tar").isFile()
+
+        when:
+        run '-Dorg.gradle.unsafe.isolated-projects=true', 'test', 'uberJar', 'thinDistribution', 'ociImage'
+
+        then:
+        outputContains "Configuration cache entry reused."
+    }
+}
@@ -0,0 +1,23 @@
+package com.uwyn.rife2.gradle
+
+import com.uwyn.rife2.gradle.launcher.NestedJarClassLoader
+import com.uwyn.rife2.gradle.launcher.NestedJarLauncher
+import com.uwyn.rife2.gradle.launcher.UberJarLayout
+import spock.lang.Specification
+
+class LauncherClassesTest extends Specification {
+    def "the nested uber jar gets every class of the launcher"() {
+        given:
+        def expected = [] as Set
+        def collect
+        collect = { Class<?> type ->
+            expected << type.name.replace('.', '/') + ".class"
+            type.declaredClasses.each(collect)
+        }
+        [NestedJarLauncher, NestedJarClassLoader, UberJarLayout,
+         Class.forName("com.uwyn.rife2.gradle.launcher.ZipIndex")].each(collect)
+
+        expect:
+        UberJar.launcherClasses().keySet().containsAll(expected)
+    }
+}
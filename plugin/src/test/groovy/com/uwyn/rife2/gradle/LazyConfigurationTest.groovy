@@ -0,0 +1,65 @@
+package com.uwyn.rife2.gradle
+
+class LazyConfigurationTest extends AbstractFunctionalTest {
+    def setup() {
+        usesProject("minimal")
+    }
+
+    def "doesn't realize the plugin tasks when they aren't needed"() {
+        given:
+        buildFile << """
+            def pluginTasks = ["precompileTemplates", "uberJar", "uberJarDependencies", "thinJar", "thinDistribution", "ociImage",
+                               "rife2Instrument", "rife2ClassLoadOrder", "rife2Cds", "rife2Runtime"]
+            def realized = []
+            tasks.configureEach { task ->
+                if (task.name in pluginTasks) {
+                    realized << task.name
+                }
+            }
+            gradle.projectsEvaluated {
+                println "realized tasks: \$realized"
+            }
+        """
+
+        when:
+        run 'help'
+
+        then:
+        outputContains "realized tasks: []"
+    }
+
+    def "applies without the application plugin"() {
+        given:
+        buildFile.text = """
+            plugins {
+                id("com.uwyn.rife2")
+            }
+
+            base {
+                archivesName = "hello"
+                version = 1.0
+            }
+
+            java {
+                toolchain {
+                    languageVersion = JavaLanguageVersion.of(17)
+                }
+            }
+
+            repositories {
+                mavenCentral()
+            }
+
+            rife2 {
+                version = "1.4.0"
+                templateDirectories.from(file("src/main/templates"))
+            }
+        """
+
+        when:
+        run 'jar'
+
+        then:
+        file("build/libs/hello-1.0.jar").isFile()
+    }
+}
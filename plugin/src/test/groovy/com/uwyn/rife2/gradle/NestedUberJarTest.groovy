@@ -0,0 +1,134 @@
+package com.uwyn.rife2.gradle
+
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.util.jar.Attributes
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+
+class NestedUberJarTest extends AbstractPackagingTest {
+    def setup() {
+        buildFile << """
+            rife2 {
+                uberJarFormat = com.uwyn.rife2.gradle.UberJarFormat.NESTED
+            }
+        """
+    }
+
+    def "nested uber jar keeps the dependency jars and launches the application"() {
+        def jarFile = file("build/libs/hello-uber-1.0.jar")
+        given:
+        checkMainClass """
+        var site = Class.forName("rife.engine.Site");
+        System.out.println("site=" + site.getClassLoader().getName());
+        System.out.println("webapp=" + (Check.class.getResource("/webapp/css/style.css") != null));
+        try (var in = site.getResourceAsStream("Site.class")) {
+            System.out.println("nested=" + (in.readAllBytes().length > 0));
+        }
+"""
+
+        when:
+        run 'uberJar'
+
+        then:
+        result.task(":uberJarDependencies") == null
+        try (def fs = FileSystems.newFileSystem(jarFile.toPath(), [:])) {
+            assert Files.list(fs.getPath("/lib")).anyMatch { it.fileName.toString().startsWith("rife2-") }
+            assert !Files.exists(fs.getPath("/rife/engine/Site.class"))
+            assert Files.exists(fs.getPath("/hello/Check.class"))
+            def manifest = fs.getPath("/META-INF/MANIFEST.MF").text
+            assert manifest.contains("Main-Class: com.uwyn.rife2.gradle.launcher.NestedJarLauncher")
+            assert manifest.contains("Rife2-Main-Class: hello.Check")
+            UberJar.launcherClasses().keySet().each { assert Files.exists(fs.getPath("/" + it)) }
+        }
+
+        when:
+        def output = runJar(jarFile)
+
+        then:
+        output.contains("site=rife2-nested")
+        output.contains("webapp=true")
+        output.contains("nested=true")
+    }
+
+    def "nested uber jar uses the versioned entries and the signers of the dependency jars"() {
+        given:
+        def tools = new File(System.getProperty("java.home"), "bin")
+        compile("mr/base", "p/V.java", 'package p; public class V { public static String v() { return "base"; } }')
+        compile("mr/17", "p/V.java", 'package p; public class V { public static String v() { return "versioned"; } }')
+        def manifest = new Manifest()
+        manifest.mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0")
+        manifest.mainAttributes.put(Attributes.Name.MULTI_RELEASE, "true")
+        new JarOutputStream(file("libs/mr.jar").newOutputStream(), manifest).withCloseable { out ->
+            out.putNextEntry(new ZipEntry("p/V.class"))
+            out.write(file("mr/base/p/V.class").bytes)
+            out.putNextEntry(new ZipEntry("META-INF/versions/17/p/V.class"))
+            out.write(file("mr/17/p/V.class").bytes)
+        }
+        compile("signed", "q/S.java", 'package q; public class S { public static String s() { return "signed"; } }')
+        new JarOutputStream(file("libs/signed.jar").newOutputStream()).withCloseable { out ->
+            out.putNextEntry(new ZipEntry("q/S.class"))
+            out.write(file("signed/q/S.class").bytes)
+        }
+        exec(new File(tools, "keytool").path, "-genkeypair", "-alias", "test", "-keyalg", "RSA", "-dname", "CN=test",
+            "-keystore", file("keystore.p12").absolutePath, "-storetype", "PKCS12", "-storepass", "secret", "-validity", "10")
+        exec(new File(tools, "jarsigner").path, "-keystore", file("keystore.p12").absolutePath, "-storepass", "secret",
+            file("libs/signed.jar").absolutePath, "test")
+        checkMainClass """
+        System.out.println("version=" + p.V.v());
+        System.out.println("signers=" + q.S.class.getProtectionDomain().getCodeSource().getCodeSigners().length);
+"""
+        buildFile << """
+            dependencies {
+                implementation(files("libs/mr.jar", "libs/signed.jar"))
+            }
+        """
+
+        when:
+        run 'uberJar'
+        def output = runJar(file("build/libs/hello-uber-1.0.jar"))
+
+        then:
+        output.contains("version=versioned")
+        output.contains("signers=1")
+    }
+
+    def "nested uber jar resources have URLs that survive their URI form and packages have the manifest attributes"() {
+        given:
+        compile("versioned", "r/R.java", 'package r; public class R { }')
+        def manifest = new Manifest()
+        manifest.mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0")
+        manifest.mainAttributes.put(Attributes.Name.IMPLEMENTATION_VERSION, "2.1")
+        new JarOutputStream(file("libs/versioned.jar").newOutputStream(), manifest).withCloseable { out ->
+            out.putNextEntry(new ZipEntry("r/R.class"))
+            out.write(file("versioned/r/R.class").bytes)
+            out.putNextEntry(new ZipEntry("r/data.txt"))
+            out.write("nested data".bytes)
+        }
+        checkMainClass """
+        var url = r.R.class.getResource("data.txt");
+        try (var in = url.toURI().toURL().openStream()) {
+            System.out.println("uri=" + new String(in.readAllBytes()));
+        }
+        try (var in = new java.net.URL(url.toString()).openStream()) {
+            System.out.println("string=" + new String(in.readAllBytes()));
+        }
+        System.out.println("version=" + r.R.class.getPackage().getImplementationVersion());
+"""
+        buildFile << """
+            dependencies {
+                implementation(files("libs/versioned.jar"))
+            }
+        """
+
+        when:
+        run 'uberJar'
+        def output = runJar(file("build/libs/hello-uber-1.0.jar"))
+
+        then:
+        output.contains("uri=nested data")
+        output.contains("string=nested data")
+        output.contains("version=2.1")
+    }
+}
@@ -0,0 +1,135 @@
+package com.uwyn.rife2.gradle
+
+import groovy.json.JsonSlurper
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream
+
+import java.util.zip.GZIPInputStream
+
+class OciImageTest extends AbstractPackagingTest {
+    def "OCI image separates the dependencies, framework, webapp, templates and classes into layers"() {
+        when:
+        run 'ociImage'
+        def image = readImage()
+
+        then:
+        image.index.manifests[0].annotations["org.opencontainers.image.ref.name"] == "hello:1.0"
+        def entrypoint = image.config.config.Entrypoint
+        entrypoint.size() == 4
+        entrypoint[0..1] == ["java", "-cp"]
+        entrypoint[3] == "hello.AppUber"
+        image.config.rootfs.diff_ids.size() == 6
+        def layers = image.layers
+        layers.size() == 6
+
+        and: "the classpath lists every jar explicitly"
+        def classpath = entrypoint[2].split(":") as List
+        classpath.first() == "/app/classes"
+        classpath.last() == "/app/"
+        !classpath.any { it.contains("*") }
+        classpath.subList(1, classpath.size() - 1) as Set == (layers[1] + layers[2]).findAll { it.endsWith(".jar") }.collect { "/" + it } as Set
+
+        layers[0].contains("usr/bin/java")
+        layers[1].any { it.startsWith("app/lib/jetty-server-") }
+        !layers[1].any { it.startsWith("app/lib/rife2-") }
+        layers[2].any { it.startsWith("app/lib/rife2-") }
+        layers[3].contains("app/webapp/css/style.css")
+        layers[4].contains("app/classes/rife/template/html/hello.class")
+        layers[5].contains("app/classes/hello/App.class")
+        !layers[5].contains("app/classes/templates/world.html")
+
+        when: "a template changes"
+        def digests = image.manifest.layers*.digest
+        file("src/main/templates/hello.html") << "<p>changed</p>"
+        run 'ociImage'
+        def changed = readImage().manifest.layers*.digest
+
+        then: "only the templates layer is different"
+        changed.size() == 6
+        (0..5).findAll { digests[it] != changed[it] } == [4]
+    }
+
+    def "OCI image requires base layers for the default Java command"() {
+        given:
+        buildFile << """
+            tasks.named("ociImage") {
+                baseLayers.setFrom()
+            }
+        """
+
+        when:
+        fails 'ociImage'
+
+        then:
+        errorOutputContains("The image has no base layers to provide the 'java' command")
+
+        when:
+        buildFile << """
+            tasks.named("ociImage") {
+                javaCommand = "/opt/java/bin/java"
+            }
+        """
+        run 'ociImage'
+        def image = readImage()
+
+        then:
+        image.layers.size() == 5
+        image.config.config.Entrypoint[0] == "/opt/java/bin/java"
+    }
+
+    def "OCI image requires a main class"() {
+        given:
+        buildFile << """
+            application {
+                mainClass.set((String) null)
+            }
+        """
+
+        when:
+        fails 'ociImage'
+
+        then:
+        errorOutputContains("The image has no main class to launch, set rife2.uberMainClass or the mainClass of the ociImage task")
+    }
+
+    def "OCI image keeps the dependency jars that share a file name"() {
+        given:
+        sameNamedDependencies()
+
+        when:
+        run 'ociImage'
+        def layers = readImage().layers
+
+        then:
+        layers[1].contains("app/lib/core.jar")
+        layers[1].contains("app/lib/2-core.jar")
+    }
+
+    private Map readImage() {
+        def blobs = [:]
+        def files = [:]
+        new TarArchiveInputStream(file("build/rife2/image.tar").newInputStream()).withCloseable { tar ->
+            def entry
+            while ((entry = tar.nextTarEntry) != null) {
+                if (!entry.directory) {
+                    files[entry.name] = tar.readAllBytes()
+                }
+            }
+        }
+        def slurper = new JsonSlurper()
+        def index = slurper.parse(files["index.json"])
+        def blob = { String digest -> files["blobs/sha256/" + digest.substring("sha256:".length())] }
+        def manifest = slurper.parse(blob(index.manifests[0].digest))
+        def config = slurper.parse(blob(manifest.config.digest))
+        def layers = manifest.layers.collect { layer ->
+            def names = []
+            new TarArchiveInputStream(new GZIPInputStream(new ByteArrayInputStream(blob(layer.digest)))).withCloseable { tar ->
+                def entry
+                while ((entry = tar.nextTarEntry) != null) {
+                    names << entry.name
+                }
+            }
+            names
+        }
+        [index: index, manifest: manifest, config: config, layers: layers]
+    }
+}
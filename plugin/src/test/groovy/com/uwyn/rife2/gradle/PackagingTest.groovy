@@ -1,13 +1,18 @@
 package com.uwyn.rife2.gradle
 
+import org.gradle.testkit.runner.TaskOutcome
+
 import java.nio.file.FileSystems
 import java.nio.file.Files
+import java.util.jar.Attributes
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
 
-class PackagingTest extends AbstractFunctionalTest {
-    def setup() {
-        usesProject("minimal")
-    }
+import javax.tools.ToolProvider
 
+class PackagingTest extends AbstractPackagingTest {
     def "#archive contains compiled resources"() {
         def jarFile = file(archive).toPath()
         when:
@@ -35,4 +40,392 @@ class PackagingTest extends AbstractFunctionalTest {
         'jar'     | 'build/libs/hello-1.0.jar'
         'uberJar' | 'build/libs/hello-uber-1.0.jar'
     }
+
+    def "#archive keeps the resources of the detected template types that have no template markup"() {
+        given:
+        buildFile << """
+            rife2 {
+                detectTemplateTypes = true
+            }
+        """
+        file("src/main/resources/templates/mail.txt") << "Hello {{v name/}}"
+        file("src/main/resources/templates/data.json") << '{"name": "value"}'
+        def jarFile = file(archive).toPath()
+
+        when:
+        run task
+
+        then:
+        try (def fs = FileSystems.newFileSystem(jarFile, [:])) {
+            assert Files.exists(fs.getPath("/rife/template/txt/mail.class"))
+            assert !Files.exists(fs.getPath("/templates/mail.txt"))
+            assert Files.exists(fs.getPath("/templates/data.json"))
+            assert !Files.exists(fs.getPath("/rife/template/json"))
+        }
+
+        where:
+        task      | archive
+        'jar'     | 'build/libs/hello-1.0.jar'
+        'uberJar' | 'build/libs/hello-uber-1.0.jar'
+    }
+
+    def "uber jar contains the web application and the dependencies"() {
+        def jarFile = file("build/libs/hello-uber-1.0.jar").toPath()
+        when:
+        run 'uberJar'
+
+        then:
+        try (def fs = FileSystems.newFileSystem(jarFile, [:])) {
+            assert Files.exists(fs.getPath("/webapp/css/style.css"))
+            assert Files.exists(fs.getPath("/hello/App.class"))
+            assert Files.exists(fs.getPath("/rife/engine/Site.class"))
+            assert Files.exists(fs.getPath("/org/eclipse/jetty/server/Server.class"))
+            assert fs.getPath("/META-INF/MANIFEST.MF").text.contains("Main-Class: hello.AppUber")
+        }
+    }
+
+    def "reuses the merged dependencies when the application changes"() {
+        given:
+        run 'uberJar'
+
+        when:
+        file("src/main/java/hello/Other.java") << "package hello; public class Other {}"
+        run 'uberJar'
+
+        then:
+        result.task(":uberJarDependencies").outcome == TaskOutcome.UP_TO_DATE
+        result.task(":uberJar").outcome == TaskOutcome.SUCCESS
+        try (def fs = FileSystems.newFileSystem(file("build/libs/hello-uber-1.0.jar").toPath(), [:])) {
+            assert Files.exists(fs.getPath("/hello/Other.class"))
+            assert Files.exists(fs.getPath("/rife/engine/Site.class"))
+        }
+    }
+
+    def "uber jar is reproducible"() {
+        def jarFile = file("build/libs/hello-uber-1.0.jar")
+        given:
+        run 'uberJar'
+        def first = jarFile.bytes
+
+        when:
+        Thread.sleep(1100)
+        file("src/main/templates/hello.html").setLastModified(System.currentTimeMillis())
+        file("src/main/webapp/css/style.css").setLastModified(System.currentTimeMillis())
+        run 'uberJar', '--rerun-tasks'
+
+        then:
+        jarFile.bytes == first
+        new ZipFile(jarFile).withCloseable { zip ->
+            zip.entries().every { it.time == new GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).timeInMillis }
+        }
+    }
+
+    def "uber jar stores the template classes and compresses the application classes"() {
+        given:
+        buildFile << """
+            tasks.named("uberJar") {
+                compressionLevel = 9
+                compressionParallelism = 2
+            }
+        """
+
+        when:
+        run 'uberJar'
+
+        then:
+        try (def zip = new ZipFile(file("build/libs/hello-uber-1.0.jar"))) {
+            assert zip.getEntry("rife/template/html/hello.class").method == ZipEntry.STORED
+            assert zip.getEntry("hello/App.class").method == ZipEntry.DEFLATED
+            assert zip.getEntry("webapp/css/style.css").method == ZipEntry.DEFLATED
+            assert zip.getInputStream(zip.getEntry("hello/App.class")).readAllBytes().length > 0
+        }
+    }
+
+    def "thin distribution references the dependencies from its lib directory"() {
+        def distribution = file("build/rife2/thin")
+        given:
+        checkMainClass """
+        System.out.println("site=" + Class.forName("rife.engine.Site").getName());
+        System.out.println("webapp=" + (Check.class.getResource("/webapp/css/style.css") != null));
+"""
+
+        when:
+        run 'thinDistribution'
+
+        then:
+        new File(distribution, "webapp/css/style.css").exists()
+        new File(distribution, "lib").list().any { it.startsWith("rife2-") }
+        def jarFile = new File(distribution, "hello-thin-1.0.jar")
+        try (def fs = FileSystems.newFileSystem(jarFile.toPath(), [:])) {
+            assert Files.exists(fs.getPath("/rife/template/html/hello.class"))
+            assert !Files.exists(fs.getPath("/templates/world.html"))
+            def manifest = fs.getPath("/META-INF/MANIFEST.MF").text.replaceAll("\r?\n ", "")
+            assert manifest.contains("Main-Class: hello.Check")
+            assert manifest =~ /Class-Path: .*lib\/rife2-[^ ]+\.jar/
+        }
+
+        when:
+        def output = runJar(jarFile)
+
+        then:
+        output.contains("site=rife.engine.Site")
+        output.contains("webapp=true")
+    }
+
+    def "thin distribution keeps the dependency jars that share a file name"() {
+        def distribution = file("build/rife2/thin")
+        given:
+        sameNamedDependencies()
+        checkMainClass """
+        System.out.println(a.A.a() + b.B.b());
+"""
+
+        when:
+        run 'thinDistribution'
+        def output = runJar(new File(distribution, "hello-thin-1.0.jar"))
+
+        then:
+        new File(distribution, "lib/core.jar").exists()
+        new File(distribution, "lib/2-core.jar").exists()
+        output.contains("ab")
+    }
+
+    def "instrumented classes replace the original ones in the jar archives"() {
+        given:
+        checkMainClass """
+        System.out.println("message=original");
+"""
+        createAgent(file("agent.jar"), "hello/Check")
+        buildFile << """
+            rife2 {
+                instrumentClasses = true
+            }
+            tasks.named("rife2Instrument") {
+                agentClasspath.setFrom(files("agent.jar"))
+            }
+        """
+
+        when:
+        run 'jar', 'uberJar'
+
+        then:
+        file("build/generated/classes/rife2-instrumented/hello/Check.class").isFile()
+        !file("build/generated/classes/rife2-instrumented/hello/App.class").exists()
+        new ZipFile(file("build/libs/hello-1.0.jar")).withCloseable { zip ->
+            def entries = zip.entries().findAll { it.name == "hello/Check.class" }
+            entries.size() == 1 && new String(zip.getInputStream(entries[0]).bytes, "ISO-8859-1").contains("enhanced")
+        }
+
+        when:
+        def output = runJar(file("build/libs/hello-uber-1.0.jar"))
+
+        then:
+        output.contains("message=enhanced")
+    }
+
+    def "the RIFE2 agent merges the meta data at build time"() {
+        def jarFile = file("build/libs/hello-uber-1.0.jar")
+        given:
+        file("src/main/java/hello/Person.java") << """package hello;
+public class Person {
+    private String name;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+}
+"""
+        file("src/main/java/hello/PersonMetaData.java") << """package hello;
+
+import rife.validation.ConstrainedProperty;
+import rife.validation.MetaData;
+
+public class PersonMetaData extends MetaData {
+    public void activateMetaData() {
+        addConstraint(new ConstrainedProperty("name").notNull(true));
+    }
+}
+"""
+        checkMainClass """
+        System.out.println("merged=" + (new Person() instanceof rife.validation.Validated));
+"""
+        run 'uberJar'
+
+        expect: "without instrumentation, the meta data needs the agent at runtime"
+        runJar(jarFile).contains("merged=false")
+
+        when:
+        buildFile << """
+            rife2 {
+                instrumentClasses = true
+            }
+        """
+        run 'uberJar'
+        def output = runJar(jarFile)
+
+        then:
+        tasks {
+            succeeded ":rife2Instrument"
+        }
+        file("build/generated/classes/rife2-instrumented/hello/Person.class").isFile()
+        output.contains("merged=true")
+    }
+
+    def "orders the uber jar entries by the recorded class load order"() {
+        given:
+        checkMainClass """
+        System.out.println("site=" + Class.forName("rife.engine.Site").getName());
+"""
+        buildFile << """
+            rife2 {
+                uberJarClassLoadOrder = true
+            }
+        """
+
+        when:
+        run 'uberJar'
+
+        then:
+        tasks {
+            succeeded ":rife2ClassLoadOrder"
+        }
+        def order = file("build/rife2/class-load-order.txt").readLines()
+        order.contains("hello/Check.class")
+        order.contains("rife/engine/Site.class")
+        !order.any { it.startsWith("java/lang/") }
+        def names = new ZipFile(file("build/libs/hello-uber-1.0.jar")).withCloseable { zip ->
+            zip.entries().collect { it.name }
+        }
+        names.indexOf("hello/Check.class") < names.indexOf("hello/App.class")
+        names.indexOf("rife/engine/Site.class") < names.indexOf("hello/App.class")
+    }
+
+    def "shrinking leaves out the unreachable classes of the uber jar"() {
+        def jarFile = file("build/libs/hello-uber-1.0.jar")
+        given:
+        checkMainClass """
+        System.out.println("site=" + Class.forName("rife.engine.Site").getName());
+"""
+        run 'uberJar'
+        def classes = { new ZipFile(jarFile).withCloseable { zip -> zip.entries().findAll { it.name.endsWith(".class") }*.name } }
+        def all = classes()
+
+        when:
+        buildFile << """
+            rife2 {
+                shrinkUberJar = true
+            }
+        """
+        run 'uberJar'
+        def shrunk = classes()
+
+        then:
+        shrunk.size() < all.size()
+        shrunk.contains("hello/Check.class")
+        shrunk.contains("hello/App.class")
+        shrunk.contains("rife/engine/Site.class")
+        shrunk.contains("rife/template/html/hello.class")
+
+        when:
+        def output = runJar(jarFile)
+
+        then:
+        output.contains("site=rife.engine.Site")
+    }
+
+    def "shrunk uber jar runs the web application server"() {
+        given:
+        uberServer()
+        buildFile << """
+            rife2 {
+                shrinkUberJar = true
+            }
+        """
+
+        when:
+        run 'uberJar'
+
+        then:
+        serve(file("build/libs/hello-uber-1.0.jar")).contains("<p>Hello World</p>")
+    }
+
+    // an agent that rewrites a string constant of a class, which keeps the class file valid
+    private void createAgent(File jar, String className) {
+        def sources = file("agent-src/agent/Agent.java")
+        sources.parentFile.mkdirs()
+        sources.text = """package agent;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.nio.charset.StandardCharsets;
+import java.security.ProtectionDomain;
+public class Agent {
+    public static void premain(String args, Instrumentation instrumentation) {
+        instrumentation.addTransformer(new ClassFileTransformer() {
+            public byte[] transform(ClassLoader loader, String name, Class<?> type, ProtectionDomain domain, byte[] bytes) {
+                if (!name.equals("$className")) {
+                    return null;
+                }
+                return new String(bytes, StandardCharsets.ISO_8859_1).replace("original", "enhanced").getBytes(StandardCharsets.ISO_8859_1);
+            }
+        });
+    }
+}
+"""
+        def classes = file("agent-classes")
+        classes.mkdirs()
+        assert ToolProvider.systemJavaCompiler.run(null, null, null, "-d", classes.absolutePath, sources.absolutePath) == 0
+        def manifest = new Manifest()
+        manifest.mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0")
+        manifest.mainAttributes.putValue("Premain-Class", "agent.Agent")
+        new JarOutputStream(jar.newOutputStream(), manifest).withCloseable { out ->
+            out.putNextEntry(new ZipEntry("agent/Agent.class"))
+            out.write(new File(classes, "agent/Agent.class").bytes)
+            out.putNextEntry(new ZipEntry("agent/Agent\$1.class"))
+            out.write(new File(classes, "agent/Agent\$1.class").bytes)
+        }
+    }
+
+    private void uberServer() {
+        file("src/main/java/hello/AppUber.java") << """package hello;
+
+import rife.engine.Server;
+
+public class AppUber extends App {
+    public static void main(String[] args) {
+        new Server()
+            .port(Integer.parseInt(args[0]))
+            .staticUberJarResourceBase("webapp")
+            .start(new AppUber());
+    }
+}
+"""
+    }
+
+    // starts the server of an uber jar on a free port, requests / and stops the server again
+    private String serve(File jar, String... jvmArgs) {
+        def port = new ServerSocket(0).withCloseable { it.localPort }
+        def log = file("server.log")
+        def process = new ProcessBuilder([javaCommand(), *jvmArgs, "-jar", jar.absolutePath, port as String])
+            .redirectErrorStream(true)
+            .redirectOutput(log)
+            .start()
+        try {
+            def deadline = System.currentTimeMillis() + 60_000
+            while (true) {
+                try {
+                    return URI.create("http://localhost:$port/").toURL().text
+                } catch (IOException e) {
+                    assert process.alive && System.currentTimeMillis() < deadline: log.text
+                    Thread.sleep(250)
+                }
+            }
+        } finally {
+            process.destroy()
+            process.waitFor()
+        }
+    }
 }
@@ -0,0 +1,55 @@
+package com.uwyn.rife2.gradle
+
+class RuntimeImageTest extends AbstractPackagingTest {
+    def setup() {
+        checkMainClass """
+        System.out.println("site=" + Class.forName("rife.engine.Site").getName());
+"""
+    }
+
+    def "creates a CDS archive and a launcher script for the uber jar"() {
+        when:
+        run 'rife2Cds'
+
+        then:
+        file("build/rife2/cds/hello-uber-1.0.jar").isFile()
+        file("build/rife2/cds/hello-uber-1.0.jsa").isFile()
+        def script = file("build/rife2/cds/hello-uber-1.0.sh")
+        script.canExecute()
+        script.text.contains("-XX:SharedArchiveFile=")
+
+        when:
+        def output = exec("sh", script.absolutePath)
+
+        then:
+        output.contains("site=rife.engine.Site")
+    }
+
+    def "creates a runtime image with the required JDK modules"() {
+        given:
+        buildFile << """
+            tasks.named("rife2Runtime") {
+                additionalModules.add("jdk.localedata")
+                generateCdsArchive = true
+            }
+        """
+
+        when:
+        run 'rife2Runtime', 'uberJar'
+
+        then:
+        def release = file("build/rife2/runtime/release")
+        release.isFile()
+        def modules = release.readLines().find { it.startsWith("MODULES=") }
+        modules.contains("java.base")
+        modules.contains("jdk.localedata")
+        !file("build/rife2/runtime/include").exists()
+        file("build/rife2/runtime/lib/server/classes.jsa").isFile()
+
+        when:
+        def output = runJar(file("build/libs/hello-uber-1.0.jar"), file("build/rife2/runtime/bin/java").absolutePath)
+
+        then:
+        output.contains("site=rife.engine.Site")
+    }
+}
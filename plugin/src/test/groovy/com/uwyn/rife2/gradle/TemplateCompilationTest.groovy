@@ -1,5 +1,7 @@
 package com.uwyn.rife2.gradle
 
+import org.gradle.testkit.runner.TaskOutcome
+
 class TemplateCompilationTest extends AbstractFunctionalTest {
     def setup() {
         usesProject("minimal")
@@ -57,4 +59,198 @@ class TemplateCompilationTest extends AbstractFunctionalTest {
         where:
         task << ['jar', 'test', 'uberJar']
     }
+
+    def "compiles every template type and directory"() {
+        given:
+        buildFile << """
+            rife2 {
+                precompiledTemplateTypes.add(com.uwyn.rife2.gradle.TemplateType.TXT)
+            }
+        """
+        file("src/main/templates/mail.txt") << "Hello {{v name/}}"
+
+        when:
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+
+        then: "templates of all the types and directories are compiled"
+        tasks {
+            succeeded ":${Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME}"
+        }
+        file("build/generated/classes/rife2/rife/template/html/hello.class").exists()
+        file("build/generated/classes/rife2/rife/template/html/world.class").exists()
+        file("build/generated/classes/rife2/rife/template/txt/mail.class").exists()
+    }
+
+    def "compiles templates with #isolation isolation"() {
+        given:
+        buildFile << """
+            rife2 {
+                templateCompilerIsolation = com.uwyn.rife2.gradle.TemplateCompilerIsolation.${isolation}
+            }
+        """
+
+        when:
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+
+        then:
+        tasks {
+            succeeded ":${Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME}"
+        }
+        file("build/generated/classes/rife2/rife/template/html/hello.class").exists()
+
+        where:
+        isolation << ['PROCESS', 'CLASSLOADER']
+    }
+
+    def "fails the build when a template doesn't compile with #isolation isolation"() {
+        given:
+        buildFile << """
+            rife2 {
+                templateCompilerIsolation = com.uwyn.rife2.gradle.TemplateCompilerIsolation.${isolation}
+            }
+        """
+        file("src/main/templates/broken.html") << "<!--b block--><p>unterminated</p>"
+
+        when:
+        fails Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+
+        then:
+        tasks {
+            failed ":${Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME}"
+        }
+        errorOutputContains("Unable to pre-compile the templates")
+
+        when: "the template is fixed, the same daemon compiles it"
+        file("src/main/templates/broken.html").text = "<!--b block--><p>terminated</p><!--/b-->"
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+
+        then:
+        file("build/generated/classes/rife2/rife/template/html/broken.class").exists()
+        file("build/generated/classes/rife2/rife/template/html/hello.class").exists()
+
+        where:
+        isolation << ['PROCESS', 'CLASSLOADER']
+    }
+
+    def "compiles large template sets in parallel partitions with #isolation isolation"() {
+        given:
+        buildFile << """
+            rife2 {
+                templateCompilerIsolation = com.uwyn.rife2.gradle.TemplateCompilerIsolation.${isolation}
+                templateCompilerParallelism = 3
+            }
+        """
+        file("src/main/templates/many").mkdirs()
+        250.times {
+            file("src/main/templates/many/page${it}.html") << "<p>Page ${it}</p>"
+        }
+
+        when:
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+
+        then: "all the partitions are compiled"
+        tasks {
+            succeeded ":${Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME}"
+        }
+        250.times {
+            assert file("build/generated/classes/rife2/rife/template/html/many/page${it}.class").exists()
+        }
+        file("build/generated/classes/rife2/rife/template/html/hello.class").exists()
+
+        where:
+        isolation << ['PROCESS', 'CLASSLOADER']
+    }
+
+    def "resolves includes across the templates directories of every partition"() {
+        given:
+        buildFile << """
+            rife2 {
+                templateCompilerParallelism = 2
+                templateDirectories.from(file("src/main/shared"))
+            }
+        """
+        file("src/main/templates/common").mkdirs()
+        file("src/main/shared/parts").mkdirs()
+        file("src/main/templates/common/header.html") << "<h1>Header</h1>"
+        file("src/main/shared/parts/footer.html") << "<p>Footer</p>"
+        60.times {
+            file("src/main/templates/common/page${it}.html") << "<!--i common.header/--><p>Page ${it}</p><!--i parts.footer/-->"
+            file("src/main/shared/parts/item${it}.html") << "<!--i common.header/--><p>Item ${it}</p>"
+        }
+
+        when:
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+
+        then:
+        60.times {
+            assert file("build/generated/classes/rife2/rife/template/html/common/page${it}.class").exists()
+            assert file("build/generated/classes/rife2/rife/template/html/parts/item${it}.class").exists()
+        }
+
+        when: "the included templates change, the incremental compilation resolves them too"
+        file("src/main/templates/common/header.html").text = "<h1>Changed header</h1>"
+        file("src/main/shared/parts/footer.html").text = "<p>Changed footer</p>"
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+
+        then:
+        tasks {
+            succeeded ":${Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME}"
+        }
+        new String(file("build/generated/classes/rife2/rife/template/html/common/page0.class").bytes, "ISO-8859-1").contains("Changed footer")
+        new String(file("build/generated/classes/rife2/rife/template/html/parts/item59.class").bytes, "ISO-8859-1").contains("Changed header")
+    }
+
+    def "ignores files that aren't templates"() {
+        given:
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+
+        when:
+        file("src/main/templates/README.md") << "Some notes"
+        file("src/main/templates/.hello.html.swp") << "swap"
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+
+        then: "the pre-compilation is up-to-date"
+        result.task(":${Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME}").outcome == TaskOutcome.UP_TO_DATE
+    }
+
+    def "detects the template types from the template files"() {
+        given:
+        buildFile << """
+            rife2 {
+                detectTemplateTypes = true
+            }
+        """
+        file("src/main/templates/mail.txt") << "Hello {{v name/}}"
+        file("src/main/templates/data.json") << '{"name": "value"}'
+        file("src/main/templates/notes.txt") << "Plain notes"
+
+        when:
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+
+        then: "only the files with template markup are compiled"
+        file("build/generated/classes/rife2/rife/template/html/hello.class").exists()
+        file("build/generated/classes/rife2/rife/template/txt/mail.class").exists()
+        !file("build/generated/classes/rife2/rife/template/txt/notes.class").exists()
+        !file("build/generated/classes/rife2/rife/template/json").exists()
+    }
+
+    def "compiles templates with custom fork options"() {
+        given:
+        buildFile << """
+            tasks.named("${Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME}") {
+                maxHeapSize = "256m"
+                garbageCollector = "Serial"
+                jvmArgs.add("-Dfile.encoding=UTF-8")
+            }
+        """
+
+        when:
+        run Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME
+
+        then:
+        tasks {
+            succeeded ":${Rife2Plugin.PRECOMPILE_TEMPLATES_TASK_NAME}"
+        }
+        file("build/generated/classes/rife2/rife/template/html/hello.class").exists()
+    }
 }
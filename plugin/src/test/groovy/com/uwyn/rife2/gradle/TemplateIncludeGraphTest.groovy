@@ -0,0 +1,26 @@
+package com.uwyn.rife2.gradle
+
+import spock.lang.Specification
+
+class TemplateIncludeGraphTest extends Specification {
+    def "parses the included template of #content"() {
+        expect:
+        TemplateIncludeGraph.parseIncludes(content) as List == [name]
+
+        where:
+        content                       | name
+        '<!--i common.header/-->'     | 'common.header'
+        '<!--i common.header -->'     | 'common.header'
+        '<!--i my-header/-->'         | 'my-header'
+        '<!--i "common.header"/-->'   | 'common.header'
+        '{{i common.footer/}}'        | 'common.footer'
+        '{{i common-footer /}}'       | 'common-footer'
+        '<r:i name="common/nav"/>'    | 'common.nav'
+        "<r:i name='common.nav'/>"    | 'common.nav'
+    }
+
+    def "parses all the includes of a template"() {
+        expect:
+        TemplateIncludeGraph.parseIncludes('<!--i a/--><p>{{i b.c/}}</p><r:i name="d"/>') as List == ['a', 'b.c', 'd']
+    }
+}